@@ -22,7 +22,9 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 
+import java.nio.file.FileSystems;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 
@@ -31,7 +33,7 @@ import java.util.logging.Level;
  */
 public class CommandLine {
 
-    @Parameter(description = "The directories to update/verify", required = true)
+    @Parameter(description = "The directories to update/verify")
     private List<String> directories = new ArrayList<>();
 
     @Parameter(names = {"--update", "-u"}, description = "Create or update hashes")
@@ -55,6 +57,119 @@ public class CommandLine {
     @Parameter(names = {"--hashfile", "-f"}, description = "The name of the file containing the hashes.")
     private String hashFile = ".hashes";
 
+    @Parameter(names = {"--durability"}, description = "When to fsync written hashes files (NONE|BATCH|SYNC)")
+    private String durability = "BATCH";
+
+    @Parameter(names = {"--storage"}, description = "Where to keep the hashes: in hashes files, in extended attributes of the files or in attributes where supported (FILE|XATTR|AUTO)")
+    private String storage = "FILE";
+
+    @Parameter(names = {"--write-queue"}, description = "How many finished directories may wait to be written")
+    private int writeQueue = 64;
+
+    @Parameter(names = {"--journal-ratio"}, description = "Append changes to a journal until it reaches this fraction of the hashes file size (0 disables the journal)")
+    private double journalRatio = 0.5d;
+
+    @Parameter(names = {"--streaming"}, description = "Stream huge directories instead of keeping their hashes in memory")
+    private boolean streaming = false;
+
+    @Parameter(names = {"--memory-budget"}, description = "MiB the listings of the open directories may use together in streaming mode before they are sorted on disk - files of a listing sorted on disk bypass --link-cache and --content-cache")
+    private long memoryBudget = 256L;
+
+    @Parameter(names = {"--parallel-roots"}, description = "How many of the given directories to scan at the same time")
+    private int parallelRoots = 1;
+
+    @Parameter(names = {"--link-cache"}, description = "How many recently hashed files and hard linked files to remember, so hard links are read only once (0 disables)")
+    private int linkCache = 100000;
+
+    @Parameter(names = {"--reference"}, description = "Take the hashes of unchanged files from this copy of the directory")
+    private String reference = null;
+
+    @Parameter(names = {"--reference-sample"}, description = "Fraction of the files taken from the reference that are hashed anyway (0 - 1)")
+    private double referenceSample = 0.0d;
+
+    @Parameter(names = {"--exclude", "-x"}, description = "Skip files and directories matching this glob pattern (repeatable)")
+    private List<String> excludes = new ArrayList<>();
+
+    @Parameter(names = {"--exclude-regex"}, description = "Skip files and directories matching this regular expression (repeatable)")
+    private List<String> excludeRegexes = new ArrayList<>();
+
+    @Parameter(names = {"--include", "-i"}, description = "Only hash files matching this glob pattern (repeatable)")
+    private List<String> includes = new ArrayList<>();
+
+    @Parameter(names = {"--min-size"}, description = "Skip files smaller than this many bytes")
+    private long minSize = 0L;
+
+    @Parameter(names = {"--max-size"}, description = "Skip files larger than this many bytes")
+    private long maxSize = Long.MAX_VALUE;
+
+    @Parameter(names = {"--threads", "-t"}, description = "How many files to hash at the same time (not in streaming mode)")
+    private int threads = 1;
+
+    @Parameter(names = {"--buffer-size"}, description = "Read buffer size in KiB (4 - 4096)")
+    private int bufferSize = HashVisitor.BLOCK_SIZE / 1024;
+
+    @Parameter(names = {"--adaptive"}, description = "Tune the reads in flight (up to --threads) and the buffer size per mount while scanning")
+    private boolean adaptive = false;
+
+    @Parameter(names = {"--cpu-cap"}, description = "Fraction of all cores hashing may use with --adaptive (0 - 1)")
+    private double cpuCap = 1.0d;
+
+    @Parameter(names = {"--tuning-file"}, description = "Start --adaptive from the settings saved in this file and save the new ones")
+    private String tuningFile = null;
+
+    @Parameter(names = {"--virtual-threads"}, description = "List, stat and hash on virtual threads, for network file systems (needs Java 21)")
+    private boolean virtualThreads = false;
+
+    @Parameter(names = {"--max-io"}, description = "How many I/O operations may be in flight at the same time with --virtual-threads")
+    private int maxOutstandingIo = 256;
+
+    @Parameter(names = {"--content-cache"}, description = "Keep hashes by inode, size and modification time in this file, so moved files are not read again")
+    private String contentCache = null;
+
+    @Parameter(names = {"--content-cache-size"}, description = "Size of the --content-cache file in MiB (1 - 2047)")
+    private long contentCacheSize = 64L;
+
+    @Parameter(names = {"--prefetch"}, description = "Read the hashes files and file attributes of this many directories ahead of the walk (not with --streaming or --virtual-threads)")
+    private int prefetch = 0;
+
+    @Parameter(names = {"--import"}, description = "Create hashes files from this md5sum/sha256sum manifest instead of hashing")
+    private String importManifest = null;
+
+    @Parameter(names = {"--export"}, description = "Write the hashes of the given --algorithm to this md5sum/sha256sum manifest")
+    private String exportManifest = null;
+
+    @Parameter(names = {"--manifest-threads"}, description = "How many directories to import or export at the same time")
+    private int manifestThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--copy-to"}, description = "Copy the directory to this new or empty directory and write the hashes files of the copy while reading each file once")
+    private String copyTo = null;
+
+    @Parameter(names = {"--copy-verify"}, description = "Read every file back after --copy-to and compare its hash")
+    private boolean copyVerify = false;
+
+    @Parameter(names = {"--daemon"}, description = "Serve scan requests on this UNIX domain socket instead of scanning")
+    private String daemon = null;
+
+    @Parameter(names = {"--daemon-threads"}, description = "How many requests the daemon serves at the same time")
+    private int daemonThreads = 4;
+
+    @Parameter(names = {"--coordinator"}, description = "Split the directories into shards and hand them to worker processes through this spool directory")
+    private String coordinator = null;
+
+    @Parameter(names = {"--workers"}, description = "How many worker processes --coordinator starts on this host (more may join with --worker)")
+    private int workers = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--shard-depth"}, description = "Directories at this depth are scanned as a whole by one worker")
+    private int shardDepth = 1;
+
+    @Parameter(names = {"--shard-timeout"}, description = "Seconds a worker may go without a heartbeat before its shard is handed out again")
+    private long shardTimeout = 60L;
+
+    @Parameter(names = {"--worker"}, description = "Scan the shards of the coordinator with this spool directory")
+    private String worker = null;
+
+    private List<String> arguments = new ArrayList<>();
+
     public List<String> getDirectories() {
         return directories;
     }
@@ -91,43 +206,402 @@ public class CommandLine {
         return hashFile;
     }
 
-    public static CommandLine readCommandLine(String[] args) {
-        CommandLine commandLine = new CommandLine();
-        JCommander jc = new JCommander(commandLine);
-        jc.setProgramName(Hasher.EXECUTABLE_NAME);
+    public String getDurabilityString() {
+        return durability;
+    }
+
+    public Durability getDurability() {
+        return Durability.valueOf(durability.toUpperCase());
+    }
+
+    public String getStorageString() {
+        return storage;
+    }
+
+    public HashStorage getStorage() {
+        return HashStorage.valueOf(storage.toUpperCase());
+    }
+
+    public int getWriteQueue() {
+        return writeQueue;
+    }
+
+    public double getJournalRatio() {
+        return journalRatio;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public int getParallelRoots() {
+        return parallelRoots;
+    }
+
+    public int getLinkCache() {
+        return linkCache;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    public double getReferenceSample() {
+        return referenceSample;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    public List<String> getExcludeRegexes() {
+        return excludeRegexes;
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public double getCpuCap() {
+        return cpuCap;
+    }
+
+    public String getTuningFile() {
+        return tuningFile;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxOutstandingIo() {
+        return maxOutstandingIo;
+    }
+
+    public String getContentCache() {
+        return contentCache;
+    }
+
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public String getImportManifest() {
+        return importManifest;
+    }
+
+    public String getExportManifest() {
+        return exportManifest;
+    }
+
+    public int getManifestThreads() {
+        return manifestThreads;
+    }
+
+    public String getCopyTo() {
+        return copyTo;
+    }
+
+    public boolean isCopyVerify() {
+        return copyVerify;
+    }
+
+    public String getDaemon() {
+        return daemon;
+    }
+
+    public int getDaemonThreads() {
+        return daemonThreads;
+    }
+
+    public String getCoordinator() {
+        return coordinator;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getShardDepth() {
+        return shardDepth;
+    }
+
+    public long getShardTimeout() {
+        return shardTimeout;
+    }
+
+    public String getWorker() {
+        return worker;
+    }
+
+    /**
+     * @return the arguments the command line was parsed from
+     */
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return the settings for a {@link HasherService}
+     */
+    public ScanConfig toScanConfig() {
+        ScanConfig config = new ScanConfig();
+        config.setUpdate(update);
+        config.setVerify(verify);
+        config.setAlgorithm(algorithm);
+        config.setHashFile(hashFile);
+        config.setDurability(getDurability());
+        config.setStorage(getStorage());
+        config.setWriteQueue(writeQueue);
+        config.setJournalRatio(journalRatio);
+        config.setStreaming(streaming);
+        config.setMemoryBudget(memoryBudget * Stats.MI);
+        config.setParallelRoots(parallelRoots);
+        config.setLinkCache(linkCache);
+        config.setReference(reference == null ? null : FileSystems.getDefault().getPath(reference));
+        config.setReferenceSample(referenceSample);
+        config.setExcludes(excludes);
+        config.setExcludeRegexes(excludeRegexes);
+        config.setIncludes(includes);
+        config.setMinSize(minSize);
+        config.setMaxSize(maxSize);
+        config.setManifestThreads(manifestThreads);
+        config.setThreads(threads);
+        config.setBufferSize(bufferSize * (int) Stats.KI);
+        config.setAdaptive(adaptive);
+        config.setCpuCap(cpuCap);
+        config.setTuningFile(tuningFile == null ? null : FileSystems.getDefault().getPath(tuningFile));
+        config.setVirtualThreads(virtualThreads);
+        config.setMaxOutstandingIo(maxOutstandingIo);
+        config.setContentCache(contentCache == null ? null : FileSystems.getDefault().getPath(contentCache));
+        config.setContentCacheSize(contentCacheSize * Stats.MI);
+        config.setPrefetch(prefetch);
+        return config;
+    }
 
+    /**
+     * Reads the command line. Prints the usage and exits on errors or if help was requested.
+     *
+     * @param args the arguments
+     * @return the parsed command line
+     */
+    public static CommandLine readCommandLine(String[] args) {
+        CommandLine commandLine = null;
         try {
-            jc.parse(args);
+            commandLine = parse(args);
         } catch (ParameterException px) {
             System.out.println(px.getMessage() + '\n');
-            jc.usage();
+            usage();
             System.exit(Hasher.STATUS_COMMAND_LINE_ERROR);
         }
 
         if (commandLine.isHelp()) {
-            jc.usage();
+            usage();
             System.exit(Hasher.STATUS_OK);
         }
 
-        if (!(commandLine.isUpdate() || !commandLine.isVerify() || !commandLine.isCompare())) {
-            System.out.println("Use --update, --verify or --compare\n");
-            jc.usage();
-            System.exit(Hasher.STATUS_COMMAND_LINE_ERROR);
+        return commandLine;
+    }
+
+    /**
+     * Parses and validates the command line without exiting.
+     *
+     * @param args the arguments
+     * @return the parsed command line
+     * @throws ParameterException if the arguments are invalid
+     */
+    public static CommandLine parse(String[] args) throws ParameterException {
+        CommandLine commandLine = new CommandLine();
+        new JCommander(commandLine).parse(args);
+        commandLine.arguments = Arrays.asList(args);
+        if (!commandLine.isHelp()) {
+            commandLine.validate();
         }
+        return commandLine;
+    }
 
-        if (!commandLine.isCompare() && commandLine.getDirectories().isEmpty()) {
-            System.out.println("List at least one directory to scan.\n");
-            jc.usage();
-            System.exit(Hasher.STATUS_COMMAND_LINE_ERROR);
+    private static void usage() {
+        JCommander jc = new JCommander(new CommandLine());
+        jc.setProgramName(Hasher.EXECUTABLE_NAME);
+        jc.usage();
+    }
+
+    private void validate() throws ParameterException {
+        try {
+            getDurability();
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(String.format("Unknown durability level: %s", durability));
         }
 
-        if (commandLine.isCompare() && commandLine.getDirectories().size() < 2) {
-            System.out.println("List at least two directories to compare.\n");
-            jc.usage();
-            System.exit(Hasher.STATUS_COMMAND_LINE_ERROR);
+        try {
+            getStorage();
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(String.format("Unknown storage: %s", storage));
         }
 
-        return commandLine;
+        if (writeQueue < 1) {
+            throw new ParameterException("The write queue must hold at least one directory.");
+        }
+
+        if (journalRatio < 0.0d) {
+            throw new ParameterException("The journal ratio must not be negative.");
+        }
+
+        if (memoryBudget < 1L) {
+            throw new ParameterException("The memory budget must be at least 1 MiB.");
+        }
+
+        if (parallelRoots < 1) {
+            throw new ParameterException("At least one directory must be scanned at a time.");
+        }
+
+        if (linkCache < 0) {
+            throw new ParameterException("The link cache size must not be negative.");
+        }
+
+        if (referenceSample < 0.0d || referenceSample > 1.0d) {
+            throw new ParameterException("The reference sample must be between 0 and 1.");
+        }
+
+        if (threads < 1) {
+            throw new ParameterException("At least one thread is needed.");
+        }
+
+        if (bufferSize < IoTuner.MIN_BUFFER_SIZE / Stats.KI || bufferSize > IoTuner.MAX_BUFFER_SIZE / Stats.KI) {
+            throw new ParameterException("The buffer size must be between 4 and 4096 KiB.");
+        }
+
+        if (cpuCap <= 0.0d || cpuCap > 1.0d) {
+            throw new ParameterException("The CPU cap must be above 0 and at most 1.");
+        }
+
+        if (maxOutstandingIo < 1) {
+            throw new ParameterException("At least one I/O operation must be allowed in flight.");
+        }
+
+        if (contentCacheSize < 1L || contentCacheSize > 2047L) {
+            throw new ParameterException("The content cache size must be between 1 and 2047 MiB.");
+        }
+
+        if (prefetch < 0) {
+            throw new ParameterException("The number of prefetched directories must not be negative.");
+        }
+
+        if (minSize > maxSize) {
+            throw new ParameterException("The minimum size must not be larger than the maximum size.");
+        }
+
+        try {
+            toScanConfig().createFilter();
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException("Invalid filter pattern: " + e.getMessage());
+        }
+
+        if (shardTimeout < 1L) {
+            throw new ParameterException("The shard timeout must be at least one second.");
+        }
+
+        if (getStorage() != HashStorage.FILE
+                && (importManifest != null || exportManifest != null || compare || copyTo != null || coordinator != null)) {
+            throw new ParameterException("--import, --export, --compare, --copy-to and --coordinator only work with --storage FILE.");
+        }
+
+        if (daemon != null) {
+            if (daemonThreads < 1) {
+                throw new ParameterException("The daemon must serve at least one request at a time.");
+            }
+            return;
+        }
+
+        if (worker != null) {
+            return;
+        }
+
+        if (importManifest != null || exportManifest != null) {
+            if (importManifest != null && exportManifest != null) {
+                throw new ParameterException("Use either --import or --export.");
+            }
+            if (update || verify || compare || copyTo != null) {
+                throw new ParameterException("--import and --export cannot be combined with --update, --verify, --compare or --copy-to.");
+            }
+            if (directories.size() != 1) {
+                throw new ParameterException("List exactly one directory to import into or export from.");
+            }
+            if (manifestThreads < 1) {
+                throw new ParameterException("At least one directory must be processed at a time.");
+            }
+            return;
+        }
+
+        if (copyVerify && copyTo == null) {
+            throw new ParameterException("--copy-verify needs --copy-to.");
+        }
+
+        if (copyTo != null) {
+            if (update || verify || compare || coordinator != null) {
+                throw new ParameterException("--copy-to cannot be combined with --update, --verify, --compare or --coordinator.");
+            }
+            if (directories.size() != 1) {
+                throw new ParameterException("List exactly one directory to copy.");
+            }
+            return;
+        }
+
+        if (!(update || verify || compare)) {
+            throw new ParameterException("Use --update, --verify or --compare");
+        }
+
+        if (compare && (update || verify)) {
+            throw new ParameterException("--compare cannot be combined with --update or --verify.");
+        }
+
+        if (!compare && directories.isEmpty()) {
+            throw new ParameterException("List at least one directory to scan.");
+        }
+
+        if (compare && directories.size() < 2) {
+            throw new ParameterException("List at least two directories to compare.");
+        }
+
+        if (coordinator != null) {
+            if (compare) {
+                throw new ParameterException("--coordinator cannot be combined with --compare.");
+            }
+            if (workers < 0) {
+                throw new ParameterException("The number of workers must not be negative.");
+            }
+            if (shardDepth < 0) {
+                throw new ParameterException("The shard depth must not be negative.");
+            }
+        }
     }
 
 }
@@ -20,44 +20,122 @@ package it.konz.hasher;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Compares the hash files in directory structures.
+ * Compares the hash files in two directory structures.
+ *
+ * The reference tree is walked and every directory is compared with the directory at the same relative path in the
+ * other tree. If both hashes files hold the same {@link DirectoryDigest}, the whole subtree is identical and skipped.
+ * Otherwise the entries are compared one by one. No file is read.
  */
 public class CompareVisitor implements FileVisitor<Path> {
 
     private static final Logger logger = Logger.getLogger(CompareVisitor.class.getName());
 
-    private Scanner scanner;
-    private final Map<Path, Map<String, HashEntry>> hashFiles = new HashMap<>();
+    private final String hashFileName;
+    private final Path reference;
+    private final Path other;
     private long compareErrors = 0L;
     private long otherErrors = 0L;
+    private long skippedSubtrees = 0L;
 
-    public CompareVisitor(final Scanner scanner) {
-        this.scanner = scanner;
+    /**
+     * Constructor.
+     *
+     * @param hashFileName the hashes file name
+     * @param reference the tree that is walked
+     * @param other the tree it is compared with
+     */
+    public CompareVisitor(final String hashFileName, final Path reference, final Path other) {
+        this.hashFileName = hashFileName;
+        this.reference = reference;
+        this.other = other;
     }
 
     @Override
     public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
-        Path hashFilePath = dir.resolve(scanner.getHashFileName());
+        Path otherDir = other.resolve(reference.relativize(dir).toString());
+        if (!Files.isDirectory(otherDir, LinkOption.NOFOLLOW_LINKS)) {
+            difference("Missing directory: " + otherDir);
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+
+        Map<String, HashEntry> hashEntries = readHashesFile(dir);
+        Map<String, HashEntry> otherEntries = readHashesFile(otherDir);
+        HashEntry digest = hashEntries.remove(HashEntry.DIRECTORY_DIGEST);
+        HashEntry otherDigest = otherEntries.remove(HashEntry.DIRECTORY_DIGEST);
+        if (digest != null && otherDigest != null && digest.getAlgorithm().equals(otherDigest.getAlgorithm())
+                && Arrays.equals(digest.getHash(), otherDigest.getHash())) {
+            if (logger.isLoggable(Level.FINE)) logger.fine("Identical: " + dir + " and " + otherDir);
+            skippedSubtrees++;
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+
+        for (HashEntry entry : hashEntries.values()) {
+            HashEntry otherEntry = otherEntries.remove(entry.getName());
+            if (otherEntry == null) {
+                difference("Missing file: " + otherDir.resolve(entry.getName()));
+            } else if (!entry.getAlgorithm().equals(otherEntry.getAlgorithm())) {
+                logger.warning(String.format("Cannot compare %s (%s) with %s (%s)", dir.resolve(entry.getName()),
+                        entry.getAlgorithm(), otherDir.resolve(entry.getName()), otherEntry.getAlgorithm()));
+                otherErrors++;
+            } else if (!Arrays.equals(entry.getHash(), otherEntry.getHash())) {
+                difference("Files differ: " + dir.resolve(entry.getName()) + " and " + otherDir.resolve(entry.getName()));
+            }
+        }
+        for (String name : otherEntries.keySet()) {
+            difference("Additional file: " + otherDir.resolve(name));
+        }
+
+        // Subdirectories only the other tree has are never walked
+        try (DirectoryStream<Path> subDirs = Files.newDirectoryStream(otherDir,
+                path -> Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))) {
+            for (Path subDir : subDirs) {
+                if (!Files.isDirectory(dir.resolve(subDir.getFileName().toString()), LinkOption.NOFOLLOW_LINKS)) {
+                    difference("Additional directory: " + subDir);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Could not list directory " + otherDir + ": " + e);
+            otherErrors++;
+        }
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    private Map<String, HashEntry> readHashesFile(Path dir) {
+        Path hashFilePath = dir.resolve(hashFileName);
         File hashFile = hashFilePath.toFile();
         Map<String, HashEntry> hashEntries = new HashMap<>();
 
         if (hashFile.exists()) {
-            otherErrors += HashEntry.parseHashesFile(hashFilePath, hashEntries);
+            try {
+                otherErrors += HashEntry.parseHashesFile(hashFilePath, hashEntries);
+            } catch (IOException e) {
+                logger.warning("Could not read hash file: " + hashFile + ": " + e);
+                otherErrors++;
+            }
         } else {
             logger.info("Unhashed directory: " + dir.toString());
         }
-        hashFiles.put(dir, hashEntries);
+        return hashEntries;
+    }
 
-        return FileVisitResult.CONTINUE;
+    private void difference(String message) {
+        logger.severe(message);
+        compareErrors++;
     }
 
     @Override
@@ -67,6 +145,8 @@ public class CompareVisitor implements FileVisitor<Path> {
 
     @Override
     public FileVisitResult visitFileFailed(final Path file, final IOException exc) throws IOException {
+        logger.warning("Could not compare " + file + ": " + exc);
+        otherErrors++;
         return FileVisitResult.CONTINUE;
     }
 
@@ -74,4 +154,22 @@ public class CompareVisitor implements FileVisitor<Path> {
     public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
         return FileVisitResult.CONTINUE;
     }
+
+    /**
+     * @return the number of differences found
+     */
+    public long getCompareErrors() {
+        return compareErrors;
+    }
+
+    public long getOtherErrors() {
+        return otherErrors;
+    }
+
+    /**
+     * @return the number of identical subtrees that were skipped thanks to their digests
+     */
+    public long getSkippedSubtrees() {
+        return skippedSubtrees;
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walks a directory tree with one virtual thread per directory entry, for file systems where every stat, open and read
+ * waits on a network round trip.
+ *
+ * The callbacks of the visitor are made like {@link Files#walkFileTree} makes them, except that they come from many
+ * threads at once: a directory is pre-visited before its entries and post-visited after all of its files and after
+ * its subdirectories were pre-visited, but directories are walked concurrently with their parents. Every metadata
+ * lookup, listing batch and visited file holds one permit of the outstanding I/O limit. Needs Java 21 or later.
+ */
+class ConcurrentWalker {
+
+    /**
+     * How many names are read from a directory per I/O permit.
+     */
+    public static final int LISTING_BATCH = 256;
+
+    /**
+     * How many entries per I/O permit may wait for a thread before the listing blocks.
+     */
+    public static final int QUEUED_PER_PERMIT = 16;
+
+    private final FileVisitor<Path> visitor;
+    private final Semaphore io;
+    private final Semaphore queued;
+    private final AtomicLong active = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param visitor the visitor - must be thread-safe
+     * @param maxOutstandingIo how many I/O operations may be in flight at the same time
+     */
+    public ConcurrentWalker(FileVisitor<Path> visitor, int maxOutstandingIo) {
+        this.visitor = visitor;
+        this.io = new Semaphore(maxOutstandingIo);
+        this.queued = new Semaphore(maxOutstandingIo * QUEUED_PER_PERMIT);
+    }
+
+    /**
+     * @return Does the runtime offer virtual threads?
+     */
+    public static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Walks the tree and returns once all callbacks are done.
+     *
+     * @param root the directory to walk
+     * @throws IOException if a callback failed - the walk is abandoned then
+     * @throws UnsupportedOperationException if the runtime does not offer virtual threads
+     */
+    public void walk(Path root) throws IOException {
+        executor = newVirtualThreadExecutor();
+        try {
+            submit(() -> visit(root));
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while walking " + root);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", e);
+        }
+    }
+
+    /**
+     * A callback that may fail.
+     */
+    private interface Step {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private void submit(Step step) {
+        active.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                step.run();
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException(e.getMessage()));
+            } catch (RuntimeException e) {
+                fail(new IOException(e));
+            } finally {
+                if (active.decrementAndGet() == 0L) {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    private void fail(IOException e) {
+        failure.compareAndSet(null, e);
+    }
+
+    /**
+     * Stats an entry and visits it as file or walks it as directory.
+     */
+    private void visit(Path path) throws IOException, InterruptedException {
+        BasicFileAttributes attrs;
+        io.acquire();
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            visitor.visitFileFailed(path, e);
+            return;
+        } finally {
+            io.release();
+        }
+
+        if (attrs.isDirectory()) {
+            walkDirectory(path, attrs, null);
+            return;
+        }
+        io.acquire();
+        try {
+            visitor.visitFile(path, attrs);
+        } finally {
+            io.release();
+        }
+    }
+
+    /**
+     * A directory being walked.
+     */
+    private static class DirectoryWalk {
+        private final Path dir;
+        // The listing holds one, so the directory is not post-visited before it was listed completely
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        private volatile IOException failure = null;
+
+        private DirectoryWalk(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * Pre-visits a directory and lists it.
+     *
+     * @param parent the walk of the parent directory - left once the directory was pre-visited, null for the root
+     */
+    private void walkDirectory(Path dir, BasicFileAttributes attrs, DirectoryWalk parent)
+            throws IOException, InterruptedException {
+        DirectoryStream<Path> stream;
+        try {
+            io.acquire();
+            try {
+                try {
+                    stream = Files.newDirectoryStream(dir);
+                } catch (IOException e) {
+                    visitor.visitFileFailed(dir, e);
+                    return;
+                }
+                boolean enter = false;
+                try {
+                    enter = visitor.preVisitDirectory(dir, attrs) == FileVisitResult.CONTINUE;
+                } finally {
+                    if (!enter) {
+                        stream.close();
+                    }
+                }
+                if (!enter) {
+                    return;
+                }
+            } finally {
+                io.release();
+            }
+        } finally {
+            if (parent != null) {
+                leave(parent);
+            }
+        }
+
+        DirectoryWalk walk = new DirectoryWalk(dir);
+        try (DirectoryStream<Path> entries = stream) {
+            Iterator<Path> iterator = entries.iterator();
+            List<Path> batch = new ArrayList<>(LISTING_BATCH);
+            do {
+                batch.clear();
+                io.acquire();
+                try {
+                    while (batch.size() < LISTING_BATCH && iterator.hasNext()) {
+                        batch.add(iterator.next());
+                    }
+                } finally {
+                    io.release();
+                }
+
+                // Never block on the queue while holding an I/O permit. Subdirectories are walked by tasks of their
+                // own, which hold no queue permit, or a listing could wait for permits held by its parents.
+                for (Path entry : batch) {
+                    queued.acquire();
+                    walk.remaining.incrementAndGet();
+                    submit(() -> {
+                        try {
+                            visit(entry, walk);
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                }
+            } while (!batch.isEmpty() && failure.get() == null);
+        } catch (DirectoryIteratorException e) {
+            // The visitor must not take the incomplete listing for the whole directory
+            walk.failure = e.getCause();
+        } finally {
+            leave(walk);
+        }
+    }
+
+    /**
+     * Visits an entry of a directory.
+     */
+    private void visit(Path entry, DirectoryWalk walk) throws IOException, InterruptedException {
+        if (failure.get() != null) {
+            // The walk is abandoned
+            return;
+        }
+        BasicFileAttributes attrs;
+        io.acquire();
+        try {
+            attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            try {
+                visitor.visitFileFailed(entry, e);
+            } finally {
+                leave(walk);
+            }
+            return;
+        } finally {
+            io.release();
+        }
+
+        if (attrs.isDirectory()) {
+            // Subdirectories have hashes files of their own - the parent only waits until they were entered
+            submit(() -> walkDirectory(entry, attrs, walk));
+            return;
+        }
+        try {
+            io.acquire();
+            try {
+                visitor.visitFile(entry, attrs);
+            } finally {
+                io.release();
+            }
+        } finally {
+            leave(walk);
+        }
+    }
+
+    /**
+     * Post-visits the directory once its listing and all of its entries are done.
+     */
+    private void leave(DirectoryWalk walk) throws IOException {
+        if (walk.remaining.decrementAndGet() == 0) {
+            visitor.postVisitDirectory(walk.dir, walk.failure);
+        }
+    }
+}
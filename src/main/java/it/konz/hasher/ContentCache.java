@@ -0,0 +1,281 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of hashes keyed by file identity (device and inode), size and modification time, so files that
+ * were moved or whose directory was renamed are not read again.
+ *
+ * The cache is a memory-mapped file of fixed size holding a set-associative hash table: the key selects a bucket of
+ * {@link #WAYS} slots. Every run has a new epoch and every slot used in a run is stamped with it. When a bucket is
+ * full, the slot with the oldest epoch is replaced, so entries of files that are gone age out. Slots carry a checksum,
+ * so a slot torn by a crash is a miss rather than a wrong hash.
+ *
+ * Only one process can use a cache file at a time. Within a process all scans share one instance per file.
+ */
+class ContentCache implements Closeable {
+
+    public static final int WAYS = 8;
+    public static final int SLOT_SIZE = 96;
+
+    private static final int MAGIC = 0x48534843;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int EPOCH_POSITION = 16;
+
+    // Slot layout: fingerprint, epoch (0 = empty), checksum, hash length, hash
+    private static final int FINGERPRINT_SIZE = 16;
+    private static final int SLOT_EPOCH = FINGERPRINT_SIZE;
+    private static final int SLOT_CHECKSUM = SLOT_EPOCH + 4;
+    private static final int SLOT_LENGTH = SLOT_CHECKSUM + 4;
+    private static final int SLOT_HASH = SLOT_LENGTH + 1;
+    private static final int MAX_HASH_SIZE = SLOT_SIZE - SLOT_HASH;
+
+    private static final int LOCK_STRIPES = 256;
+
+    private static final Map<Path, ContentCache> openCaches = new HashMap<>();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer map;
+    private final long buckets;
+    private final int epoch;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ThreadLocal<MessageDigest> fingerprints = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support MD5
+            throw new IllegalStateException(e);
+        }
+    });
+    private int users = 0;
+
+    /**
+     * Opens a cache file or returns the instance already open in this process.
+     *
+     * @param file the cache file - created if it does not exist and emptied if it is a cache of another size
+     * @param maxSize the size of the cache file in bytes - at most 2 GiB
+     * @return the cache - must be closed
+     * @throws IOException if the file cannot be mapped, is used by another process or is not a content cache
+     */
+    public static ContentCache open(Path file, long maxSize) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (openCaches) {
+            ContentCache cache = openCaches.get(key);
+            if (cache == null) {
+                cache = new ContentCache(key, maxSize);
+                openCaches.put(key, cache);
+            }
+            cache.users++;
+            return cache;
+        }
+    }
+
+    private ContentCache(Path file, long maxSize) throws IOException {
+        this.file = file;
+        long slots = Math.max(WAYS, (Math.min(maxSize, Integer.MAX_VALUE) - HEADER_SIZE) / SLOT_SIZE / WAYS * WAYS);
+        this.buckets = slots / WAYS;
+        long size = HEADER_SIZE + slots * SLOT_SIZE;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("Content cache " + file + " is used by another process");
+            }
+            if (channel.size() > 0L) {
+                // Never overwrite a file that is not a cache - the path may be mistyped
+                ByteBuffer header = ByteBuffer.allocate(8);
+                if (channel.read(header, 0L) < header.capacity() || header.getInt(0) != MAGIC
+                        || header.getInt(4) != VERSION) {
+                    throw new IOException(file + " is not a content cache - refusing to overwrite it");
+                }
+            }
+            // A cache of another size starts over
+            boolean valid = channel.size() == size;
+            if (!valid) {
+                channel.truncate(0L);
+            }
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            if (!valid || map.getLong(8) != slots) {
+                for (int i = 0; i < HEADER_SIZE; i++) {
+                    map.put(i, (byte) 0);
+                }
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putLong(8, slots);
+            }
+            epoch = map.getInt(EPOCH_POSITION) + 1;
+            map.putInt(EPOCH_POSITION, epoch);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up a hash.
+     *
+     * @param fileKey the file key of the file
+     * @param size the file size
+     * @param time the modification time
+     * @param algorithm the hashing algorithm
+     * @return the hash, if cached
+     */
+    public Optional<byte[]> get(Object fileKey, long size, FileTime time, String algorithm) {
+        byte[] fingerprint = fingerprint(fileKey, size, time, algorithm);
+        long bucket = bucket(fingerprint);
+        synchronized (locks[(int) (bucket % LOCK_STRIPES)]) {
+            for (int way = 0; way < WAYS; way++) {
+                int slot = slot(bucket, way);
+                if (map.getInt(slot + SLOT_EPOCH) != 0 && matches(slot, fingerprint)) {
+                    byte[] hash = new byte[map.get(slot + SLOT_LENGTH) & 0xff];
+                    for (int i = 0; i < hash.length; i++) {
+                        hash[i] = map.get(slot + SLOT_HASH + i);
+                    }
+                    if (map.getInt(slot + SLOT_CHECKSUM) != checksum(fingerprint, hash)) {
+                        return Optional.empty();
+                    }
+                    map.putInt(slot + SLOT_EPOCH, epoch);
+                    return Optional.of(hash);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Caches a hash. Replaces the least recently used entry of the bucket if it is full.
+     *
+     * @param fileKey the file key of the file
+     * @param size the file size
+     * @param time the modification time
+     * @param algorithm the hashing algorithm
+     * @param hash the hash
+     */
+    public void put(Object fileKey, long size, FileTime time, String algorithm, byte[] hash) {
+        if (hash.length > MAX_HASH_SIZE) {
+            return;
+        }
+        byte[] fingerprint = fingerprint(fileKey, size, time, algorithm);
+        long bucket = bucket(fingerprint);
+        synchronized (locks[(int) (bucket % LOCK_STRIPES)]) {
+            int target = -1;
+            int oldestEpoch = Integer.MAX_VALUE;
+            for (int way = 0; way < WAYS; way++) {
+                int slot = slot(bucket, way);
+                int slotEpoch = map.getInt(slot + SLOT_EPOCH);
+                if (slotEpoch != 0 && matches(slot, fingerprint)) {
+                    target = slot;
+                    break;
+                }
+                if (slotEpoch < oldestEpoch) {
+                    oldestEpoch = slotEpoch;
+                    target = slot;
+                }
+            }
+
+            for (int i = 0; i < FINGERPRINT_SIZE; i++) {
+                map.put(target + i, fingerprint[i]);
+            }
+            map.put(target + SLOT_LENGTH, (byte) hash.length);
+            for (int i = 0; i < hash.length; i++) {
+                map.put(target + SLOT_HASH + i, hash[i]);
+            }
+            map.putInt(target + SLOT_CHECKSUM, checksum(fingerprint, hash));
+            map.putInt(target + SLOT_EPOCH, epoch);
+        }
+    }
+
+    /**
+     * Writes the cache to disk once the last scan using it is done.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (openCaches) {
+            if (--users > 0) {
+                return;
+            }
+            openCaches.remove(file);
+        }
+        try {
+            map.force();
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private byte[] fingerprint(Object fileKey, long size, FileTime time, String algorithm) {
+        String key = fileKey + "|" + size + "|" + time.to(TimeUnit.NANOSECONDS) + "|" + algorithm;
+        return fingerprints.get().digest(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long bucket(byte[] fingerprint) {
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (fingerprint[i] & 0xff);
+        }
+        return (value & Long.MAX_VALUE) % buckets;
+    }
+
+    private static int slot(long bucket, int way) {
+        return (int) (HEADER_SIZE + (bucket * WAYS + way) * SLOT_SIZE);
+    }
+
+    private boolean matches(int slot, byte[] fingerprint) {
+        for (int i = 0; i < FINGERPRINT_SIZE; i++) {
+            if (map.get(slot + i) != fingerprint[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(byte[] fingerprint, byte[] hash) {
+        CRC32 crc = new CRC32();
+        crc.update(fingerprint);
+        crc.update(hash.length);
+        crc.update(hash);
+        return (int) crc.getValue();
+    }
+}
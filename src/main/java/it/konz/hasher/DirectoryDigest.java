@@ -0,0 +1,120 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Computes the Merkle digest of a directory: a hash over the entries of its hashes file and the digests of its
+ * subdirectories. Two directory trees with the same digest hold the same files with the same content - modification
+ * times are not part of the digest.
+ *
+ * The digest is stored as the {@link HashEntry#DIRECTORY_DIGEST} entry of the hashes file. Its size is the total size
+ * of all files in the tree and its time the newest modification time in the tree. If any file or subdirectory could
+ * not be hashed, the directory has no digest, and neither have its parents. Excluded subdirectories are not part of
+ * the digest.
+ */
+class DirectoryDigest {
+
+    private static final Base64.Encoder base64encoder = Base64.getEncoder();
+
+    private final String algorithm;
+    private final MessageDigest digest;
+    private final Map<String, HashEntry> children = new TreeMap<>();
+    private long size = 0L;
+    private FileTime newest = FileTime.fromMillis(0L);
+    private volatile boolean incomplete = false;
+
+    /**
+     * Constructor.
+     *
+     * @param algorithm the hashing algorithm - must be available
+     */
+    public DirectoryDigest(String algorithm) {
+        this.algorithm = algorithm;
+        try {
+            this.digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Checked before scanning
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds an entry of the directory. Entries must be added in name order.
+     *
+     * @param entry the entry
+     */
+    public void add(HashEntry entry) {
+        update(entry.getName(), entry);
+    }
+
+    /**
+     * Adds the digest of a subdirectory. May be called from any thread and in any order.
+     *
+     * @param name the name of the subdirectory
+     * @param childDigest its digest - empty if it has none
+     */
+    public synchronized void addChild(String name, Optional<HashEntry> childDigest) {
+        if (childDigest.isPresent()) {
+            children.put(name, childDigest.get());
+        } else {
+            incomplete = true;
+        }
+    }
+
+    /**
+     * Something in the directory could not be hashed.
+     */
+    public void setIncomplete() {
+        incomplete = true;
+    }
+
+    /**
+     * Completes the digest once all entries and subdirectories were added.
+     *
+     * @return the digest entry - empty if the directory was not hashed completely
+     */
+    public synchronized Optional<HashEntry> finish() {
+        for (Map.Entry<String, HashEntry> child : children.entrySet()) {
+            update(child.getKey() + "/", child.getValue());
+        }
+        if (incomplete) {
+            return Optional.empty();
+        }
+        return Optional.of(new HashEntry(HashEntry.DIRECTORY_DIGEST, newest, size, algorithm, digest.digest()));
+    }
+
+    private void update(String name, HashEntry entry) {
+        String line = name + HashEntry.DELIMITER + entry.getSize() + HashEntry.DELIMITER + entry.getAlgorithm()
+                + HashEntry.DELIMITER + base64encoder.encodeToString(entry.getHash()) + '\n';
+        digest.update(line.getBytes(StandardCharsets.UTF_8));
+        size += entry.getSize();
+        if (entry.getTime().compareTo(newest) > 0) {
+            newest = entry.getTime();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads what the walk will need for the next directories before it gets there.
+ *
+ * A second walk runs up to a given number of directories ahead of the scan, in the same order, and hands every
+ * directory it enters to a few loader threads. It also reads the attributes of every file on the way, so they are
+ * cached by the time the scan stats them. The scan {@link #take takes} the result when it enters a directory. If the
+ * two walks disagree - because the tree changed in between or the look-ahead fell behind - the scan loads the directory
+ * itself, and the look-ahead drops everything the scan has passed.
+ *
+ * @param <T> what is loaded per directory
+ */
+class DirectoryPrefetcher<T> {
+
+    /**
+     * How many directories are loaded at the same time.
+     */
+    public static final int LOADERS = 4;
+
+    private static final Logger logger = Logger.getLogger(DirectoryPrefetcher.class.getName());
+
+    private final Path root;
+    private final Path start;
+    private final ScanFilter filter;
+    private final Function<Path, T> loader;
+    private final Semaphore ahead;
+    private final ExecutorService loaders;
+    private final Thread walker;
+    // Directories loaded or being loaded, in walk order
+    private final Deque<Prefetched> prefetched = new ArrayDeque<>();
+    private long entered = 0L;
+    private long taken = 0L;
+    private volatile boolean closed = false;
+
+    /**
+     * A directory of the look-ahead walk.
+     */
+    private class Prefetched {
+        private final long number;
+        private final Path dir;
+        private final Future<T> result;
+
+        private Prefetched(long number, Path dir, Future<T> result) {
+            this.number = number;
+            this.dir = dir;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param root the scanned directory
+     * @param start where the walk starts - root or a directory below it
+     * @param directories how many directories the look-ahead may be ahead of the scan
+     * @param filter the filter of the scan - excluded directories are not entered
+     * @param loader loads a directory - must be thread-safe
+     */
+    public DirectoryPrefetcher(Path root, Path start, int directories, ScanFilter filter, Function<Path, T> loader) {
+        if (directories < 1) {
+            throw new IllegalArgumentException("At least one directory must be prefetched.");
+        }
+        this.root = root;
+        this.start = start;
+        this.filter = filter;
+        this.loader = loader;
+        this.ahead = new Semaphore(directories);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.loaders = Executors.newFixedThreadPool(Math.min(directories, LOADERS), runnable -> {
+            Thread thread = new Thread(runnable, "hasher-prefetch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.walker = new Thread(this::walk, "hasher-lookahead");
+        this.walker.setDaemon(true);
+    }
+
+    /**
+     * Starts the look-ahead.
+     */
+    public void start() {
+        walker.start();
+    }
+
+    private void walk() {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (closed) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (filter.excludesDirectory(root, dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    try {
+                        prefetch(dir);
+                    } catch (InterruptedException e) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // The walk has read the attributes, which is all we want
+                    return closed ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // The scan reports it
+                    return closed ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            if (!closed) {
+                logger.warning("Look-ahead stopped: " + e);
+            }
+        }
+    }
+
+    /**
+     * Starts loading a directory once the look-ahead may get that far.
+     */
+    private void prefetch(Path dir) throws InterruptedException {
+        long number;
+        synchronized (this) {
+            number = ++entered;
+            if (number <= taken) {
+                // Behind the scan - nothing to win here
+                return;
+            }
+        }
+        ahead.acquire();
+        synchronized (this) {
+            if (closed || number <= taken) {
+                ahead.release();
+                return;
+            }
+            prefetched.addLast(new Prefetched(number, dir, loaders.submit(() -> loader.apply(dir))));
+        }
+    }
+
+    /**
+     * Takes what was loaded for a directory. Must be called for every directory the scan enters, in walk order.
+     *
+     * @param dir the directory
+     * @return what was loaded - empty if the look-ahead did not get there
+     */
+    public Optional<T> take(Path dir) {
+        Prefetched match = null;
+        synchronized (this) {
+            taken++;
+            while (!prefetched.isEmpty() && prefetched.peekFirst().number <= taken) {
+                Prefetched next = prefetched.removeFirst();
+                ahead.release();
+                if (next.dir.equals(dir)) {
+                    match = next;
+                } else {
+                    next.result.cancel(false);
+                }
+            }
+        }
+        if (match == null) {
+            if (logger.isLoggable(Level.FINE)) logger.fine("Not prefetched: " + dir);
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(match.result.get());
+        } catch (ExecutionException e) {
+            logger.warning("Could not prefetch " + dir + ": " + e.getCause());
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stops the look-ahead and the loaders. Loads already running are completed, but nobody takes them.
+     */
+    public void close() {
+        closed = true;
+        walker.interrupt();
+        synchronized (this) {
+            for (Prefetched left : prefetched) {
+                left.result.cancel(false);
+            }
+            prefetched.clear();
+        }
+        loaders.shutdown();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+/**
+ * How hard the hashes files are pushed to the disk before they replace the old ones.
+ */
+public enum Durability {
+
+    /**
+     * Never fsync. The rename is still atomic, but a power loss may lose recent writes.
+     */
+    NONE,
+
+    /**
+     * Collect several hashes files and fsync them together before they are renamed.
+     */
+    BATCH,
+
+    /**
+     * Fsync every hashes file and its directory before the next one is written.
+     */
+    SYNC
+}
@@ -22,7 +22,9 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.util.*;
@@ -30,6 +32,8 @@ import java.util.logging.Logger;
 
 /**
  * Represents a line in the hashes file.
+ *
+ * Subclasses may keep the values elsewhere - everything but the name is read through the getters.
  */
 public class HashEntry implements Comparable<HashEntry> {
 
@@ -38,6 +42,31 @@ public class HashEntry implements Comparable<HashEntry> {
      */
     public static final String DELIMITER = "|";
 
+    /**
+     * The name of the entry that holds the digest of the whole directory - no file can have it.
+     */
+    public static final String DIRECTORY_DIGEST = "/";
+
+    /**
+     * Suffix of the journal file that holds the changes made since the hashes file was last written as a whole.
+     */
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Journal line prefix for an added or changed entry.
+     */
+    public static final char JOURNAL_PUT = '+';
+
+    /**
+     * Journal line prefix for a removed entry.
+     */
+    public static final char JOURNAL_REMOVE = '-';
+
+    /**
+     * Prefix of the first journal line, which names the version of the hashes file the journal belongs to.
+     */
+    public static final char JOURNAL_BASE = '#';
+
     private static final Logger logger = Logger.getLogger(HashEntry.class.getName());
     private static final String DELIMITER_REGEX = "\\|";
 
@@ -55,6 +84,8 @@ public class HashEntry implements Comparable<HashEntry> {
     /**
      * Parses a hashes file and adds it's entries to the provided map.
      *
+     * If there is a journal next to the hashes file, its changes are applied on top.
+     *
      * @param hashFilePath the path of the hashes file
      * @param hashEntries the map of hash entries to add to
      * @return the number of errors that occurred
@@ -76,16 +107,112 @@ public class HashEntry implements Comparable<HashEntry> {
             }
         }
 
+        Path journalPath = journalPath(hashFilePath);
+        if (journalPath.toFile().exists()) {
+            errorCount += parseJournal(hashFilePath, journalPath, hashEntries);
+        }
+
+        return errorCount;
+    }
+
+    /**
+     * @param hashFilePath the path of a hashes file
+     * @return the first line of a journal started for the current version of the hashes file
+     * @throws IOException if the hashes file cannot be read
+     */
+    public static String journalHeader(Path hashFilePath) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(hashFilePath, BasicFileAttributes.class);
+        return JOURNAL_BASE + Long.toString(attrs.size()) + DELIMITER + attrs.lastModifiedTime();
+    }
+
+    /**
+     * Checks whether a journal belongs to the current version of its hashes file. A journal left behind by a crash
+     * right after the hashes file was replaced belongs to the old version - its entries are older than the new ones.
+     *
+     * @param hashFilePath the path of the hashes file
+     * @param firstLine the first line of the journal
+     * @return false if the journal was started for another version - journals without a header belong to any
+     */
+    public static boolean isJournalOf(Path hashFilePath, String firstLine) {
+        if (firstLine.isEmpty() || firstLine.charAt(0) != JOURNAL_BASE) {
+            return true;
+        }
+        try {
+            return firstLine.equals(journalHeader(hashFilePath));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies the changes recorded in a journal to the provided map - unless it belongs to another version of the
+     * hashes file.
+     *
+     * @param hashFilePath the path of the hashes file
+     * @param journalPath the path of the journal
+     * @param hashEntries the map of hash entries to change
+     * @return the number of errors that occurred
+     * @throws IOException if the journal cannot be read
+     */
+    private static long parseJournal(Path hashFilePath, Path journalPath, Map<String, HashEntry> hashEntries)
+            throws IOException {
+        long errorCount = 0L;
+
+        try (BufferedReader br = new BufferedReader(new FileReader(journalPath.toFile()))) {
+            String line;
+            boolean first = true;
+            while ((line = br.readLine()) != null) {
+                if (first) {
+                    first = false;
+                    if (!isJournalOf(hashFilePath, line)) {
+                        logger.info("Ignoring journal of an older hash file: " + journalPath);
+                        break;
+                    }
+                    if (!line.isEmpty() && line.charAt(0) == JOURNAL_BASE) {
+                        continue;
+                    }
+                }
+                try {
+                    if (line.isEmpty()) {
+                        throw new IllegalArgumentException("Empty journal line");
+                    }
+                    String rest = line.substring(1);
+                    switch (line.charAt(0)) {
+                        case JOURNAL_PUT:
+                            HashEntry entry = fromString(rest);
+                            hashEntries.put(entry.getName(), entry);
+                            break;
+                        case JOURNAL_REMOVE:
+                            hashEntries.remove(rest);
+                            break;
+                        default:
+                            throw new IllegalArgumentException(String.format("Incorrect journal entry format: %s", line));
+                    }
+                } catch (Exception e) {
+                    logger.warning("Error parsing line from file " + journalPath + ": " + e);
+                    errorCount++;
+                }
+            }
+        }
+
         return errorCount;
     }
 
+    /**
+     * @param hashFilePath the path of a hashes file
+     * @return the path of its journal
+     */
+    public static Path journalPath(Path hashFilePath) {
+        return hashFilePath.resolveSibling(hashFilePath.getFileName().toString() + JOURNAL_SUFFIX);
+    }
+
     /**
      * Create a HashEntry instance from a line in the hashes file.
      *
      * @param line the line
      * @return the new HashEntry instance
      */
-    private static HashEntry fromString(String line) {
+    static HashEntry fromString(String line) {
         String[] parts = line.split(DELIMITER_REGEX);
         if (parts.length != 5) {
             throw new IllegalArgumentException(String.format("Incorrect hash entry format: %s", line));
@@ -159,16 +286,28 @@ public class HashEntry implements Comparable<HashEntry> {
         StringBuilder sb = new StringBuilder();
         sb.append(name);
         sb.append(DELIMITER);
-        sb.append(time.toString());
+        sb.append(getTime().toString());
         sb.append(DELIMITER);
-        sb.append(size);
+        sb.append(getSize());
         sb.append(DELIMITER);
-        sb.append(algorithm);
+        sb.append(getAlgorithm());
         sb.append(DELIMITER);
-        sb.append(base64encoder.encodeToString(hash));
+        sb.append(base64encoder.encodeToString(getHash()));
         return sb.toString();
     }
 
+    /**
+     * Converts the entry in a line to append to the journal.
+     *
+     * @return the line
+     */
+    public String toJournalString() {
+        if (stillExists()) {
+            return JOURNAL_PUT + toString();
+        }
+        return JOURNAL_REMOVE + name;
+    }
+
     /**
      * @return the file name
      */
@@ -176,6 +315,13 @@ public class HashEntry implements Comparable<HashEntry> {
         return name;
     }
 
+    /**
+     * @return Is this the digest of the directory rather than the entry of a file?
+     */
+    public boolean isDirectoryDigest() {
+        return DIRECTORY_DIGEST.equals(name);
+    }
+
     /**
      * @return the modification time
      */
@@ -232,11 +378,11 @@ public class HashEntry implements Comparable<HashEntry> {
 
         final HashEntry hashEntry = (HashEntry) o;
 
-        if (size != hashEntry.size) return false;
-        if (!algorithm.equals(hashEntry.algorithm)) return false;
-        if (!Arrays.equals(hash, hashEntry.hash)) return false;
+        if (getSize() != hashEntry.getSize()) return false;
+        if (!getAlgorithm().equals(hashEntry.getAlgorithm())) return false;
+        if (!Arrays.equals(getHash(), hashEntry.getHash())) return false;
         if (!name.equals(hashEntry.name)) return false;
-        if (!time.equals(hashEntry.time)) return false;
+        if (!getTime().equals(hashEntry.getTime())) return false;
 
         return true;
     }
@@ -244,15 +390,21 @@ public class HashEntry implements Comparable<HashEntry> {
     @Override
     public int hashCode() {
         int result = name.hashCode();
-        result = 31 * result + time.hashCode();
-        result = 31 * result + (int) (size ^ (size >>> 32));
-        result = 31 * result + algorithm.hashCode();
-        result = 31 * result + Arrays.hashCode(hash);
+        result = 31 * result + getTime().hashCode();
+        result = 31 * result + (int) (getSize() ^ (getSize() >>> 32));
+        result = 31 * result + getAlgorithm().hashCode();
+        result = 31 * result + Arrays.hashCode(getHash());
         return result;
     }
 
+    /**
+     * By name - the directory digest is the last line of the hashes file.
+     */
     @Override
     public int compareTo(HashEntry o) {
+        if (isDirectoryDigest() || o.isDirectoryDigest()) {
+            return Boolean.compare(isDirectoryDigest(), o.isDirectoryDigest());
+        }
         return name.compareTo(o.name);
     }
 }
@@ -0,0 +1,419 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The hash entries of one directory, stored column by column in primitive arrays.
+ *
+ * A {@link HashEntry} object with its time, hash array and map node takes well over 100 bytes per file. Here every
+ * entry costs its name and about 30 bytes: times and sizes are kept in long arrays, the algorithm as an index into a
+ * table shared by all instances, the hashes one after another in a single byte array and the flags in bit sets. Names
+ * are found through an open addressing index.
+ *
+ * {@link #get} returns a view of the row: changes made through {@link HashEntry#update} and
+ * {@link HashEntry#setStillExists()} are written to the table right away, and {@link #put} of such a view is a no-op.
+ * Views are only valid as long as no entry is removed. All methods are thread-safe.
+ */
+class HashEntryTable extends AbstractMap<String, HashEntry> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_ARENA_SIZE = 256;
+
+    // Algorithm names by id - shared, so a million entries do not keep a million copies of "MD5"
+    private static final List<String> algorithms = new CopyOnWriteArrayList<>();
+
+    private int size = 0;
+    private String[] names = new String[INITIAL_CAPACITY];
+    private long[] seconds = new long[INITIAL_CAPACITY];
+    private int[] nanos = new int[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private byte[] algorithmIds = new byte[INITIAL_CAPACITY];
+    private int[] hashOffsets = new int[INITIAL_CAPACITY];
+    private byte[] hashLengths = new byte[INITIAL_CAPACITY];
+    private final BitSet changed = new BitSet();
+    private final BitSet stillExists = new BitSet();
+
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+    private int arenaUsed = 0;
+    private int arenaGarbage = 0;
+
+    // Row + 1 by slot, 0 = free - linear probing
+    private int[] index = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * A row of the table seen as hash entry.
+     */
+    private class Row extends HashEntry {
+        private final int row;
+
+        private Row(int row) {
+            super(names[row], null, 0L, null, null);
+            this.row = row;
+        }
+
+        private HashEntryTable table() {
+            return HashEntryTable.this;
+        }
+
+        @Override
+        public FileTime getTime() {
+            synchronized (HashEntryTable.this) {
+                return FileTime.from(Instant.ofEpochSecond(seconds[row], nanos[row]));
+            }
+        }
+
+        @Override
+        public long getSize() {
+            synchronized (HashEntryTable.this) {
+                return sizes[row];
+            }
+        }
+
+        @Override
+        public String getAlgorithm() {
+            synchronized (HashEntryTable.this) {
+                return algorithm(algorithmIds[row]);
+            }
+        }
+
+        @Override
+        public byte[] getHash() {
+            synchronized (HashEntryTable.this) {
+                return Arrays.copyOfRange(arena, hashOffsets[row], hashOffsets[row] + (hashLengths[row] & 0xff));
+            }
+        }
+
+        @Override
+        public boolean wasChanged() {
+            synchronized (HashEntryTable.this) {
+                return changed.get(row);
+            }
+        }
+
+        @Override
+        public boolean stillExists() {
+            synchronized (HashEntryTable.this) {
+                return stillExists.get(row);
+            }
+        }
+
+        @Override
+        public void setStillExists() {
+            synchronized (HashEntryTable.this) {
+                stillExists.set(row);
+            }
+        }
+
+        @Override
+        public void update(FileTime time, long size, String algorithm, byte[] hash) {
+            synchronized (HashEntryTable.this) {
+                set(row, time, size, algorithm, hash, true, true);
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) >= 0;
+    }
+
+    @Override
+    public synchronized HashEntry get(Object key) {
+        int row = key instanceof String ? find((String) key) : -1;
+        return row < 0 ? null : new Row(row);
+    }
+
+    /**
+     * Stores the values of an entry.
+     *
+     * @param name the file name
+     * @param entry the entry
+     * @return a view of the row if there was an entry of that name before - it shows the new values
+     */
+    @Override
+    public synchronized HashEntry put(String name, HashEntry entry) {
+        if (entry instanceof Row && ((Row) entry).table() == this && names[((Row) entry).row].equals(name)) {
+            // Changes were written through already
+            return entry;
+        }
+
+        int row = find(name);
+        boolean existed = row >= 0;
+        if (!existed) {
+            row = append(name);
+        }
+        set(row, entry.getTime(), entry.getSize(), entry.getAlgorithm(), entry.getHash(), entry.wasChanged(),
+                entry.stillExists());
+        return existed ? new Row(row) : null;
+    }
+
+    /**
+     * Removes an entry. The last row takes its place, so views obtained before are invalid afterwards.
+     *
+     * @param key the file name
+     * @return a copy of the values of the removed entry, if there was one
+     */
+    @Override
+    public synchronized HashEntry remove(Object key) {
+        int slot = key instanceof String ? slotOf((String) key) : -1;
+        if (slot < 0 || index[slot] == 0) {
+            return null;
+        }
+        int row = index[slot] - 1;
+        HashEntry removed = copy(row);
+        arenaGarbage += hashLengths[row] & 0xff;
+        deleteSlot(slot);
+
+        int last = size - 1;
+        if (row != last) {
+            // Move the last row into the gap
+            index[slotOf(names[last])] = row + 1;
+            names[row] = names[last];
+            seconds[row] = seconds[last];
+            nanos[row] = nanos[last];
+            sizes[row] = sizes[last];
+            algorithmIds[row] = algorithmIds[last];
+            hashOffsets[row] = hashOffsets[last];
+            hashLengths[row] = hashLengths[last];
+            changed.set(row, changed.get(last));
+            stillExists.set(row, stillExists.get(last));
+        }
+        names[last] = null;
+        changed.clear(last);
+        stillExists.clear(last);
+        size = last;
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(index, 0);
+        changed.clear();
+        stillExists.clear();
+        size = 0;
+        arenaUsed = 0;
+        arenaGarbage = 0;
+    }
+
+    /**
+     * Same as {@link HashEntry#hashEntriesChanged} for the values, without looking at every entry.
+     *
+     * @return Were there any changes?
+     */
+    public synchronized boolean isChanged() {
+        return size == 0 || !changed.isEmpty() || stillExists.cardinality() < size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, HashEntry>> entrySet() {
+        return new AbstractSet<Map.Entry<String, HashEntry>>() {
+            @Override
+            public Iterator<Map.Entry<String, HashEntry>> iterator() {
+                return new Iterator<Map.Entry<String, HashEntry>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        synchronized (HashEntryTable.this) {
+                            return next < size;
+                        }
+                    }
+
+                    @Override
+                    public Map.Entry<String, HashEntry> next() {
+                        synchronized (HashEntryTable.this) {
+                            if (next >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            Row row = new Row(next++);
+                            return new SimpleImmutableEntry<>(row.getName(), row);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return HashEntryTable.this.size();
+            }
+        };
+    }
+
+    /**
+     * @return the row of the name, -1 if there is none
+     */
+    private int find(String name) {
+        int slot = slotOf(name);
+        return index[slot] - 1;
+    }
+
+    /**
+     * @return the slot holding the name, or the free slot where it would go
+     */
+    private int slotOf(String name) {
+        int mask = index.length - 1;
+        int slot = spread(name.hashCode()) & mask;
+        while (index[slot] != 0 && !names[index[slot] - 1].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Frees a slot and moves later entries of the probe sequence back, so they are still found.
+     */
+    private void deleteSlot(int slot) {
+        int mask = index.length - 1;
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (index[next] == 0) {
+                break;
+            }
+            int home = spread(names[index[next] - 1].hashCode()) & mask;
+            // Move back unless the entry's home lies cyclically in (free, next]
+            boolean stays = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!stays) {
+                index[free] = index[next];
+                free = next;
+            }
+        }
+        index[free] = 0;
+    }
+
+    private int append(String name) {
+        if (size == names.length) {
+            int capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            algorithmIds = Arrays.copyOf(algorithmIds, capacity);
+            hashOffsets = Arrays.copyOf(hashOffsets, capacity);
+            hashLengths = Arrays.copyOf(hashLengths, capacity);
+        }
+        if ((size + 1) * 2 > index.length) {
+            rehash(index.length * 2);
+        }
+        int row = size++;
+        names[row] = name;
+        hashLengths[row] = 0;
+        index[slotOf(name)] = row + 1;
+        return row;
+    }
+
+    private void rehash(int capacity) {
+        index = new int[capacity];
+        for (int row = 0; row < size; row++) {
+            index[slotOf(names[row])] = row + 1;
+        }
+    }
+
+    private void set(int row, FileTime time, long size, String algorithm, byte[] hash, boolean changed,
+                     boolean stillExists) {
+        if (hash.length > 0xff) {
+            throw new IllegalArgumentException("Hashes longer than 255 bytes are not supported.");
+        }
+        Instant instant = time.toInstant();
+        seconds[row] = instant.getEpochSecond();
+        nanos[row] = instant.getNano();
+        sizes[row] = size;
+        algorithmIds[row] = algorithmId(algorithm);
+
+        int oldLength = hashLengths[row] & 0xff;
+        if (oldLength != hash.length) {
+            arenaGarbage += oldLength;
+            hashOffsets[row] = allocate(hash.length);
+            hashLengths[row] = (byte) hash.length;
+        }
+        System.arraycopy(hash, 0, arena, hashOffsets[row], hash.length);
+        this.changed.set(row, changed);
+        this.stillExists.set(row, stillExists);
+    }
+
+    /**
+     * @return the offset of a new hash in the arena - compacts or grows it if it is full
+     */
+    private int allocate(int length) {
+        if (arenaUsed + length > arena.length) {
+            int live = arenaUsed - arenaGarbage;
+            byte[] compacted = new byte[Math.max(INITIAL_ARENA_SIZE, Math.max(arena.length, (live + length) * 2))];
+            int offset = 0;
+            for (int row = 0; row < size; row++) {
+                int hashLength = hashLengths[row] & 0xff;
+                System.arraycopy(arena, hashOffsets[row], compacted, offset, hashLength);
+                hashOffsets[row] = offset;
+                offset += hashLength;
+            }
+            arena = compacted;
+            arenaUsed = offset;
+            arenaGarbage = 0;
+        }
+        int offset = arenaUsed;
+        arenaUsed += length;
+        return offset;
+    }
+
+    private HashEntry copy(int row) {
+        Row view = new Row(row);
+        return new HashEntry(view.getName(), view.getTime(), view.getSize(), view.getAlgorithm(), view.getHash());
+    }
+
+    private static byte algorithmId(String algorithm) {
+        synchronized (algorithms) {
+            int id = algorithms.indexOf(algorithm);
+            if (id < 0) {
+                if (algorithms.size() > 0xff) {
+                    throw new IllegalStateException("Too many hashing algorithms.");
+                }
+                algorithms.add(algorithm);
+                id = algorithms.size() - 1;
+            }
+            return (byte) id;
+        }
+    }
+
+    private static String algorithm(byte id) {
+        return algorithms.get(id & 0xff);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+/**
+ * Where the hashes of a directory are kept.
+ */
+public enum HashStorage {
+
+    /**
+     * In the hashes file of every directory.
+     */
+    FILE,
+
+    /**
+     * In an extended attribute of every file. The file system must support user attributes.
+     */
+    XATTR,
+
+    /**
+     * In extended attributes where the file system supports them, in hashes files elsewhere.
+     */
+    AUTO
+}
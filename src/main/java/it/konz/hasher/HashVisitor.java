@@ -23,95 +23,566 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Scanner's file visitor.
+ *
+ * With more than one thread the walk only collects the files and the threads of a {@link HashingPool} hash them. Small
+ * files of a directory are handed over in batches, so they do not pay the task overhead one by one. A directory's
+ * hashes file is written once the walk has left the directory and all of its files are done, no matter which thread
+ * finishes last. When updating, a directory also waits for its subdirectories, so its {@link DirectoryDigest} covers
+ * theirs.
+ *
+ * The callbacks are thread-safe, so a {@link ConcurrentWalker} may visit many directories and files at once. Files are
+ * hashed on the visiting thread then.
  */
 class HashVisitor implements FileVisitor<Path> {
 
     public static final int BLOCK_SIZE = 32768;
 
+    /**
+     * Files smaller than this are hashed in batches.
+     */
+    public static final long SMALL_FILE_SIZE = 64L * 1024L;
+
+    /**
+     * The most files in a batch.
+     */
+    public static final int BATCH_FILES = 64;
+
+    /**
+     * The most bytes in a batch.
+     */
+    public static final long BATCH_BYTES = 1024L * 1024L;
+
     private static final Logger logger = Logger.getLogger(HashVisitor.class.getName());
 
-    private Scanner scanner;
-    private final Map<Path, Map<String, HashEntry>> hashFiles = new HashMap<>();
-    private final Map<String, Optional<MessageDigest>> otherAlgorithms = new HashMap<>();
-    private long verificationErrors = 0L;
-    private long otherErrors = 0L;
-    private long fileCount = 0L;
-    private long fileBytes = 0L;
+    protected final Scanner scanner;
+    private final HashesWriter writer;
+    private final Map<Path, DirectoryState> directories = new ConcurrentHashMap<>();
+    private final Map<Path, ReferenceDirectory> referenceFiles = new ConcurrentHashMap<>();
+    protected final Path root;
+    // AUTO only if the root supports attributes
+    private final HashStorage storage;
+    // Hashes can only have been kept in attributes where the file system takes them
+    private final boolean attributesReadable;
+    private final ThreadLocal<Map<String, Optional<MessageDigest>>> digests = ThreadLocal.withInitial(HashMap::new);
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+    private final AtomicLong verificationErrors = new AtomicLong();
+    private final AtomicLong otherErrors = new AtomicLong();
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong fileBytes = new AtomicLong();
+    private final AtomicLong bytesDeduplicated = new AtomicLong();
+    private final LinkCache linkCache;
+    private ContentCache contentCache = null;
+    private final Map<String, IoSettings> initialIoSettings;
+    private final IoTuner fixedTuner;
+    private final Map<Object, IoTuner> tunersByDevice = new LinkedHashMap<>();
+    private final Map<Path, IoTuner> directoryTuners = new ConcurrentHashMap<>();
+    private HashingPool pool = null;
+    private DirectoryPrefetcher<LoadedDirectory> prefetcher = null;
+
+    /**
+     * What is read for a directory before its files are visited.
+     */
+    private static class LoadedDirectory {
+        private final HashEntryTable hashEntries = new HashEntryTable();
+        // Where the entries are written to and whether they were read from the other storage
+        private boolean attributes = false;
+        private boolean migrated = false;
+        // The entries of the files are read from their attributes as they are visited
+        private boolean lazy = false;
+    }
+
+    /**
+     * The copy of a directory in the reference tree. Its entries are read when the first file of the directory needs
+     * hashing, so directories whose files are all up to date never touch the reference tree.
+     */
+    private class ReferenceDirectory {
+        private final Path dir;
+        // Not synchronized, as that would pin virtual threads during the read
+        private final Lock lock = new ReentrantLock();
+        private Map<String, HashEntry> entries = null;
+
+        private ReferenceDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        private Map<String, HashEntry> getEntries() {
+            lock.lock();
+            try {
+                if (entries == null) {
+                    entries = readReference(dir);
+                }
+                return entries;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The entries of a directory and the number of its files still being hashed.
+     */
+    private class DirectoryState {
+        private final Path dir;
+        private final HashEntryTable hashEntries;
+        private final boolean attributes;
+        private final boolean migrated;
+        private final boolean lazy;
+        // The walk itself holds one, so the directory is not finished before it was left
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean failed = false;
+        // Only when updating
+        private DirectoryState parent = null;
+        private DirectoryDigest digest = null;
+        // Small files not handed to the pool yet - only used by the walking thread
+        private List<Runnable> batch = new ArrayList<>();
+        private long batchBytes = 0L;
+
+        private DirectoryState(Path dir, LoadedDirectory loaded) {
+            this.dir = dir;
+            this.hashEntries = loaded.hashEntries;
+            this.attributes = loaded.attributes;
+            this.migrated = loaded.migrated;
+            this.lazy = loaded.lazy;
+        }
+
+        private void enter() {
+            pending.incrementAndGet();
+        }
+
+        private void leave() {
+            if (pending.decrementAndGet() == 0) {
+                finish(this);
+            }
+        }
+    }
 
-    public HashVisitor(final Scanner scanner) {
+    /**
+     * Constructor.
+     *
+     * @param scanner the scanner
+     * @param writer writes the hashes files
+     * @param root the scanned directory
+     * @param initialIoSettings the I/O settings per mount to start tuning with
+     */
+    public HashVisitor(final Scanner scanner, final HashesWriter writer, final Path root,
+                       final Map<String, IoSettings> initialIoSettings) {
         this.scanner = scanner;
+        this.writer = writer;
+        this.root = root;
+        boolean attributesSupported = XattrStore.isSupported(root);
+        this.storage = scanner.getStorage() == HashStorage.AUTO && !attributesSupported ? HashStorage.FILE
+                : scanner.getStorage();
+        this.attributesReadable = storage != HashStorage.FILE || attributesSupported;
+        this.linkCache = scanner.getLinkCacheSize() > 0 ? new LinkCache(scanner.getLinkCacheSize()) : null;
+        this.initialIoSettings = initialIoSettings;
+        this.fixedTuner = new IoTuner(root.toString(), new IoSettings(readers(), scanner.getBufferSize()), readers(),
+                false, 1.0d);
+    }
+
+    /**
+     * @param contentCache the persistent cache to look up hashes in before files are read - null for none
+     */
+    public void setContentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    /**
+     * Loads the hashes files of the next directories in the background while the walk is busy with the current one.
+     * Only for walks that enter one directory after the other in {@link Files#walkFileTree} order.
+     *
+     * @param start where the walk starts
+     */
+    public void startPrefetch(Path start) {
+        prefetcher = new DirectoryPrefetcher<>(root, start, scanner.getPrefetch(), scanner.getFilter(), this::load);
+        prefetcher.start();
     }
 
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (scanner.isCancelled()) {
+            return FileVisitResult.TERMINATE;
+        }
+        if (scanner.getFilter().excludesDirectory(root, dir)) {
+            if (logger.isLoggable(Level.FINE)) logger.fine("Excluded directory: " + dir.toString());
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+
+        Optional<LoadedDirectory> prefetched = prefetcher != null ? prefetcher.take(dir) : Optional.empty();
+        LoadedDirectory loaded = prefetched.isPresent() ? prefetched.get() : load(dir);
+        DirectoryState state = new DirectoryState(dir, loaded);
+        if (scanner.isUpdate()) {
+            state.digest = new DirectoryDigest(scanner.getAlgorithm());
+            // The parent's digest covers ours, so it waits for us
+            state.parent = dir.equals(root) ? null : directories.get(dir.getParent());
+            if (state.parent != null) {
+                state.parent.enter();
+            }
+        }
+        directories.put(dir, state);
+
+        if (scanner.getReference() != null && scanner.isUpdate()) {
+            Path referenceDir = scanner.getReference().resolve(root.relativize(dir).toString());
+            referenceFiles.put(dir, new ReferenceDirectory(referenceDir));
+        }
+        attachTuner(dir);
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Reads the hashes file or the attributes of a directory. May be called from any thread.
+     *
+     * A directory stored the other way than configured is read anyway and all its entries are written the configured
+     * way when it is finished. Of a directory stored in attributes as configured only the digest is read here - the
+     * entries of its files are read as they are visited.
+     *
+     * @param dir the directory
+     * @return the entries
+     */
+    private LoadedDirectory load(Path dir) {
         Path hashFilePath = dir.resolve(scanner.getHashFileName());
         File hashFile = hashFilePath.toFile();
-        Map<String, HashEntry> hashEntries = new HashMap<>();
+        LoadedDirectory loaded = new LoadedDirectory();
+
+        boolean hashFileExists = hashFile.exists();
+        Optional<String> directoryValue = !attributesReadable || storage == HashStorage.FILE && hashFileExists
+                ? Optional.empty() : XattrStore.readDirectory(dir);
+        // Directories whose files could not take the attributes keep their hashes file
+        loaded.attributes = storage != HashStorage.FILE && !(storage == HashStorage.AUTO && hashFileExists
+                && directoryValue.equals(Optional.of(XattrStore.HASHES_FILE)));
 
-        if (hashFile.exists()) {
+        if (hashFileExists) {
             try {
-                otherErrors += HashEntry.parseHashesFile(hashFilePath, hashEntries);
+                otherErrors.addAndGet(HashEntry.parseHashesFile(hashFilePath, loaded.hashEntries));
             } catch(IOException e) {
-                otherErrors++;
+                otherErrors.incrementAndGet();
                 logger.warning("Could not read hash file: " + hashFile + ": " + e);
             }
+            loaded.migrated = loaded.attributes;
+        } else if (directoryValue.isPresent() && loaded.attributes) {
+            otherErrors.addAndGet(XattrStore.loadDigest(dir, directoryValue.get(), loaded.hashEntries));
+            loaded.lazy = true;
+        } else if (directoryValue.isPresent()) {
+            try {
+                otherErrors.addAndGet(XattrStore.load(dir, directoryValue.get(), loaded.hashEntries));
+            } catch (IOException e) {
+                otherErrors.incrementAndGet();
+                logger.warning("Could not read attributes in " + dir + ": " + e);
+            }
+            loaded.migrated = true;
         } else {
             if (scanner.isVerify()) {
                 logger.info("Unhashed directory: " + dir.toString());
             }
         }
-        hashFiles.put(dir, hashEntries);
+        return loaded;
+    }
 
-        return FileVisitResult.CONTINUE;
+    /**
+     * Selects how the files of a directory are read. Must be called for every entered directory.
+     *
+     * @param dir the directory
+     */
+    protected void attachTuner(Path dir) {
+        if (scanner.isAdaptive()) {
+            directoryTuners.put(dir, tunerFor(dir));
+        }
+    }
+
+    /**
+     * @return how many files may be read at the same time
+     */
+    private int readers() {
+        return scanner.isVirtualThreads() ? scanner.getMaxOutstandingIo() : scanner.getThreads();
+    }
+
+    /**
+     * Forgets the tuner of a directory once all its files are read.
+     *
+     * @param dir the directory
+     */
+    protected void detachTuner(Path dir) {
+        directoryTuners.remove(dir);
+    }
+
+    /**
+     * @return the tuner of the device the directory is on - created on first use
+     */
+    private IoTuner tunerFor(Path dir) {
+        // No I/O while holding the lock - it would pin virtual threads
+        Object device;
+        try {
+            device = Files.getAttribute(dir, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            // Tune everything together
+            device = root;
+        }
+        synchronized (this) {
+            IoTuner tuner = tunersByDevice.get(device);
+            if (tuner != null) {
+                return tuner;
+            }
+        }
+
+        String mount;
+        try {
+            mount = Files.getFileStore(dir).toString();
+        } catch (IOException e) {
+            mount = dir.toString();
+        }
+        IoSettings initial = initialIoSettings.getOrDefault(mount, new IoSettings(readers(), scanner.getBufferSize()));
+        synchronized (this) {
+            // Another thread may have been faster
+            IoTuner tuner = tunersByDevice.get(device);
+            if (tuner == null) {
+                tuner = new IoTuner(mount, initial, readers(), true, scanner.getCpuCap());
+                tunersByDevice.put(device, tuner);
+            }
+            return tuner;
+        }
+    }
+
+    /**
+     * Reads the hashes file or the attributes of the corresponding directory in the reference tree.
+     *
+     * @param referenceDir the directory in the reference tree
+     * @return its entries - empty if there are none
+     */
+    private Map<String, HashEntry> readReference(Path referenceDir) {
+        Path hashFilePath = referenceDir.resolve(scanner.getHashFileName());
+        Map<String, HashEntry> referenceEntries = new HashMap<>();
+
+        if (hashFilePath.toFile().exists()) {
+            try {
+                otherErrors.addAndGet(HashEntry.parseHashesFile(hashFilePath, referenceEntries));
+            } catch (IOException e) {
+                otherErrors.incrementAndGet();
+                logger.warning("Could not read reference hash file: " + hashFilePath + ": " + e);
+            }
+        } else if (Files.isDirectory(referenceDir)) {
+            Optional<String> directoryValue = XattrStore.readDirectory(referenceDir);
+            if (directoryValue.isPresent()) {
+                try {
+                    otherErrors.addAndGet(XattrStore.load(referenceDir, directoryValue.get(), referenceEntries));
+                } catch (IOException e) {
+                    otherErrors.incrementAndGet();
+                    logger.warning("Could not read reference attributes in " + referenceDir + ": " + e);
+                }
+            }
+        }
+
+        return referenceEntries;
     }
 
     @Override
     public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-        if (exc == null) {
-            Map<String, HashEntry> hashEntries = hashFiles.get(dir);
-
-            if (scanner.isUpdate() && HashEntry.hashEntriesChanged(hashEntries.values())) {
-                File hashFile = dir.resolve(scanner.getHashFileName()).toFile();
-
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(hashFile))) {
-                    for (HashEntry entry : new TreeSet<>(hashEntries.values())) {
-                        if (entry.stillExists()) {
-                            bw.write(entry.toString());
-                            bw.newLine();
-                        }
-                    }
+        DirectoryState state = directories.remove(dir);
+        state.failed = exc != null;
+        submitBatch(state);
+        state.leave();
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Writes the hashes file of a directory whose files and subdirectories are all done.
+     */
+    private void finish(DirectoryState state) {
+        Optional<HashEntry> digest = Optional.empty();
+        if (!state.failed && scanner.isUpdate() && !scanner.isCancelled()) {
+            digest = updateDigest(state);
+            if (state.hashEntries.isChanged() || state.migrated) {
+                try {
+                    writer.submit(state.dir, state.hashEntries.values(), state.attributes, state.migrated);
+                } catch (InterruptedIOException e) {
+                    otherErrors.incrementAndGet();
+                    logger.warning("Could not write hash file for " + state.dir + ": " + e);
                 }
             }
         }
 
-        hashFiles.remove(dir);
+        referenceFiles.remove(state.dir);
+        detachTuner(state.dir);
 
-        return FileVisitResult.CONTINUE;
+        if (state.parent != null) {
+            state.parent.digest.addChild(state.dir.getFileName().toString(), digest);
+            state.parent.leave();
+        } else if (digest.isPresent()) {
+            logger.info(String.format("Digest of %s: %s %s", state.dir, digest.get().getAlgorithm(),
+                    Base64.getEncoder().encodeToString(digest.get().getHash())));
+        }
+    }
+
+    /**
+     * Computes the digest of a directory and replaces the recorded one if it differs.
+     *
+     * @return the digest - empty if something in the directory could not be hashed
+     */
+    private Optional<HashEntry> updateDigest(DirectoryState state) {
+        List<HashEntry> entries = new ArrayList<>(state.hashEntries.size());
+        for (HashEntry entry : state.hashEntries.values()) {
+            if (entry.stillExists() && !entry.isDirectoryDigest()) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries);
+        entries.forEach(state.digest::add);
+        Optional<HashEntry> digest = state.digest.finish();
+
+        // Without a new digest the recorded one is dropped, as it does not exist anymore
+        HashEntry recorded = state.hashEntries.get(HashEntry.DIRECTORY_DIGEST);
+        if (digest.isPresent()) {
+            if (digest.get().equals(recorded)) {
+                recorded.setStillExists();
+            } else {
+                state.hashEntries.put(HashEntry.DIRECTORY_DIGEST, digest.get());
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Something in a directory could not be hashed, so it gets no digest.
+     *
+     * @param dir the directory
+     */
+    protected void incomplete(Path dir) {
+        DirectoryState state = directories.get(dir);
+        if (state != null && state.digest != null) {
+            state.digest.setIncomplete();
+        }
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (scanner.isCancelled()) {
+            return FileVisitResult.TERMINATE;
+        }
         String name = file.getFileName().toString();
 
+        // A subdirectory beyond the depth limit - the digest would miss it
+        if (attrs.isDirectory()) {
+            incomplete(file.getParent());
+        }
+
         // Don't hash the hashes file
-        if (!attrs.isRegularFile() || scanner.getHashFileName().equals(name)) {
+        if (!attrs.isRegularFile() || scanner.isHashesFile(name)) {
             return FileVisitResult.CONTINUE;
         }
 
-        // Get the correct entry
-        Map<String, HashEntry> hashEntries = hashFiles.get(file.getParent());
-        Optional<HashEntry> entry = Optional.ofNullable(hashEntries.get(name));
+        DirectoryState state = directories.get(file.getParent());
+
+        // Keep the entries of excluded files, so changing the filter does not cause rehashing later
+        if (scanner.getFilter().excludesFile(root, file, attrs)) {
+            entryOf(state, name, file).ifPresent(HashEntry::setStillExists);
+            return FileVisitResult.CONTINUE;
+        }
+
+        Runnable task = () -> process(state, name, file, attrs);
+        if (scanner.getThreads() <= 1 || scanner.isVirtualThreads()) {
+            task.run();
+        } else if (attrs.size() < SMALL_FILE_SIZE) {
+            state.batch.add(task);
+            state.batchBytes += attrs.size();
+            if (state.batch.size() >= BATCH_FILES || state.batchBytes >= BATCH_BYTES) {
+                submitBatch(state);
+            }
+        } else {
+            execute(state, attrs.size(), task);
+        }
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Hands the collected small files of a directory to the pool as one task.
+     */
+    private void submitBatch(DirectoryState state) throws InterruptedIOException {
+        if (state.batch.isEmpty()) {
+            return;
+        }
+        List<Runnable> batch = state.batch;
+        long bytes = state.batchBytes;
+        state.batch = new ArrayList<>();
+        state.batchBytes = 0L;
+        execute(state, bytes, () -> batch.forEach(Runnable::run));
+    }
+
+    /**
+     * Runs a task on the thread pool.
+     */
+    private void execute(DirectoryState state, long size, Runnable task) throws InterruptedIOException {
+        if (pool == null) {
+            pool = new HashingPool(scanner.getThreads());
+        }
+        state.enter();
+        try {
+            pool.execute(size, () -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.severe("Hashing failed: " + e);
+                    otherErrors.incrementAndGet();
+                } finally {
+                    state.leave();
+                }
+            });
+        } catch (InterruptedIOException e) {
+            state.leave();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up the entry of a file - in a directory stored in attributes, the attribute of the file is read now.
+     */
+    private Optional<HashEntry> entryOf(DirectoryState state, String name, Path file) {
+        HashEntry entry = state.hashEntries.get(name);
+        if (entry != null || !state.lazy) {
+            return Optional.ofNullable(entry);
+        }
+        try {
+            Optional<HashEntry> stored = XattrStore.readFile(file);
+            if (!stored.isPresent()) {
+                return Optional.empty();
+            }
+            state.hashEntries.put(name, stored.get());
+        } catch (IOException | RuntimeException e) {
+            // The file is simply hashed again
+            otherErrors.incrementAndGet();
+            logger.warning("Could not read attribute of " + file + ": " + e);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(state.hashEntries.get(name));
+    }
+
+    /**
+     * Verifies and/or updates a single file.
+     */
+    private void process(DirectoryState state, String name, Path file, BasicFileAttributes attrs) {
+        if (scanner.isCancelled()) {
+            return;
+        }
+        Optional<HashEntry> entry = entryOf(state, name, file);
 
         // Verify
         boolean verified = false;
@@ -119,22 +590,45 @@ class HashVisitor implements FileVisitor<Path> {
             try {
                 verified = verify(entry, file, attrs);
             } catch(IOException e) {
-                logger.severe("Could read file: " + file.toString() + ": " + e.toString());
-                return FileVisitResult.CONTINUE;
+                readFailed(file, e);
+                if (state.digest != null) {
+                    state.digest.setIncomplete();
+                }
+                return;
             }
         }
 
         // Update
         if (scanner.isUpdate()) {
             try {
-                hashEntries.put(name, update(file, attrs, entry, verified));
+                state.hashEntries.put(name, update(file, attrs, entry, verified));
             } catch(IOException e) {
-                logger.severe("Could read file: " + file.toString() + ": " + e.toString());
-                return FileVisitResult.CONTINUE;
+                readFailed(file, e);
+                state.digest.setIncomplete();
             }
         }
+    }
 
-        return FileVisitResult.CONTINUE;
+    /**
+     * Waits until all files handed to the thread pool are hashed and stops it and the prefetching.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedIOException {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (pool != null) {
+            pool.awaitCompletion();
+        }
+    }
+
+    /**
+     * @return the fraction of the time every hashing thread was busy - empty if files were hashed on the walking
+     * thread
+     */
+    public List<Double> getWorkerUtilisation() {
+        return pool == null ? Collections.emptyList() : pool.getUtilisation();
     }
 
     /**
@@ -146,7 +640,7 @@ class HashVisitor implements FileVisitor<Path> {
      * @return the success of the verification
      * @throws IOException if reading the file fails
      */
-    private boolean verify(Optional<HashEntry> entry, Path file, BasicFileAttributes attrs) throws IOException {
+    protected boolean verify(Optional<HashEntry> entry, Path file, BasicFileAttributes attrs) throws IOException {
         FileTime time = attrs.lastModifiedTime();
         long size = attrs.size();
         boolean verified = false;
@@ -161,11 +655,12 @@ class HashVisitor implements FileVisitor<Path> {
                         if (logger.isLoggable(Level.FINE)) logger.fine("Verifed: " + file.toString());
                     } else {
                         logger.severe("Verification failed for " + file.toString());
-                        verificationErrors++;
+                        verificationErrors.incrementAndGet();
+                        scanner.getListener().verificationFailed(file);
                     }
                 } else {
                     logger.warning("No verification algorithm for " + file.toString());
-                    otherErrors++;
+                    otherErrors.incrementAndGet();
                 }
             } else {
                 logger.info(String.format("Modified file (%s): %s", time.toString(), file.toString()));
@@ -187,14 +682,14 @@ class HashVisitor implements FileVisitor<Path> {
      * @return the new/updated/unchanged entry
      * @throws IOException if reading the file fails
      */
-    private HashEntry update(Path file, BasicFileAttributes attrs, Optional<HashEntry> entry, boolean verified) throws IOException {
+    protected HashEntry update(Path file, BasicFileAttributes attrs, Optional<HashEntry> entry, boolean verified) throws IOException {
         String name = file.getFileName().toString();
         FileTime time = attrs.lastModifiedTime();
         long size = attrs.size();
         HashEntry updatedEntry;
 
         if (!entry.isPresent()) {
-            updatedEntry = new HashEntry(name, time, size, scanner.getAlgorithm(), doHash(file, scanner.getAlgorithm(), attrs).get());
+            updatedEntry = new HashEntry(name, time, size, scanner.getAlgorithm(), hashOrLookup(file, attrs));
             if (logger.isLoggable(Level.FINE)) logger.fine("Hashed: " + file.toString());
         } else {
             updatedEntry = entry.get();
@@ -204,15 +699,76 @@ class HashVisitor implements FileVisitor<Path> {
             if (!time.equals(updatedEntry.getTime()) || size != updatedEntry.getSize()) {
                 // If the hash was verified we do not need to compute a new one
                 if (!verified) {
-                    updatedEntry.update(time, size, scanner.getAlgorithm(), doHash(file, scanner.getAlgorithm(), attrs).get());
+                    updatedEntry.update(time, size, scanner.getAlgorithm(), hashOrLookup(file, attrs));
                     if (logger.isLoggable(Level.FINE)) logger.fine("Hashed: " + file.toString());
                 }
+            } else if (contentCache != null && attrs.fileKey() != null) {
+                // Keeps the entry from ageing out of the cache
+                contentCache.put(attrs.fileKey(), size, time, updatedEntry.getAlgorithm(), updatedEntry.getHash());
             }
         }
 
         return updatedEntry;
     }
 
+    /**
+     * Takes the hash from the content cache if the file was hashed before under another name. Otherwise the file is
+     * hashed (or seeded) and the hash is added to the cache.
+     *
+     * @param file the file to hash
+     * @param attrs the file attributes
+     * @return the hash
+     * @throws IOException If the file cannot be read.
+     */
+    private byte[] hashOrLookup(Path file, BasicFileAttributes attrs) throws IOException {
+        Object fileKey = contentCache != null ? attrs.fileKey() : null;
+        if (fileKey == null) {
+            return hashOrSeed(file, attrs);
+        }
+
+        Optional<byte[]> cached = contentCache.get(fileKey, attrs.size(), attrs.lastModifiedTime(), scanner.getAlgorithm());
+        if (cached.isPresent()) {
+            bytesDeduplicated.addAndGet(attrs.size());
+            if (logger.isLoggable(Level.FINE)) logger.fine("Hash taken from content cache: " + file.toString());
+            return cached.get();
+        }
+        byte[] hash = hashOrSeed(file, attrs);
+        contentCache.put(fileKey, attrs.size(), attrs.lastModifiedTime(), scanner.getAlgorithm(), hash);
+        return hash;
+    }
+
+    /**
+     * Takes the hash from the reference tree if the file there has the same size and modification time. Otherwise
+     * (and for a random sample of the seeded files) the file is hashed.
+     *
+     * @param file the file to hash
+     * @param attrs the file attributes
+     * @return the hash
+     * @throws IOException If the file cannot be read.
+     */
+    private byte[] hashOrSeed(Path file, BasicFileAttributes attrs) throws IOException {
+        ReferenceDirectory referenceDir = referenceFiles.get(file.getParent());
+        HashEntry reference = referenceDir == null ? null : referenceDir.getEntries().get(file.getFileName().toString());
+
+        if (reference == null || reference.getSize() != attrs.size() || !reference.getTime().equals(attrs.lastModifiedTime())
+                || !reference.getAlgorithm().equals(scanner.getAlgorithm())) {
+            return doHash(file, scanner.getAlgorithm(), attrs).get();
+        }
+
+        if (ThreadLocalRandom.current().nextDouble() >= scanner.getReferenceSample()) {
+            if (logger.isLoggable(Level.FINE)) logger.fine("Seeded from reference: " + file.toString());
+            return reference.getHash();
+        }
+
+        byte[] hash = doHash(file, scanner.getAlgorithm(), attrs).get();
+        if (!Arrays.equals(reference.getHash(), hash)) {
+            logger.severe("File differs from reference: " + file.toString());
+            verificationErrors.incrementAndGet();
+            scanner.getListener().verificationFailed(file);
+        }
+        return hash;
+    }
+
     /**
      * Perform the hashing.
      *
@@ -222,67 +778,133 @@ class HashVisitor implements FileVisitor<Path> {
      * @return The hash result - if the algorithm was available
      * @throws java.io.IOException If the file cannot be read.
      */
-    private Optional<byte[]> doHash(Path file, String requiredAlgorithm, BasicFileAttributes attrs) throws IOException {
-
-        // Get the required message digest
-        MessageDigest requiredDigest;
-        if (scanner.getAlgorithm().equals(requiredAlgorithm)) {
-            requiredDigest = scanner.getDigest();
-        } else {
-            Optional<MessageDigest> maybeDigest = otherAlgorithms.get(requiredAlgorithm);
-            if (maybeDigest == null) {
-                try {
-                    maybeDigest = Optional.of(MessageDigest.getInstance(requiredAlgorithm));
-                } catch (NoSuchAlgorithmException e) {
-                    logger.warning(String.format("Algorithm %s is not available.", requiredAlgorithm));
-                    maybeDigest = Optional.empty();
-                }
-                otherAlgorithms.put(requiredAlgorithm, maybeDigest);
+    protected Optional<byte[]> doHash(Path file, String requiredAlgorithm, BasicFileAttributes attrs) throws IOException {
+
+        // Another hard link of the same inode may already have been hashed
+        Object fileKey = linkCache != null ? attrs.fileKey() : null;
+        if (fileKey != null) {
+            Optional<byte[]> cached = linkCache.get(file, fileKey, attrs.size(), attrs.lastModifiedTime(), requiredAlgorithm);
+            if (cached.isPresent()) {
+                bytesDeduplicated.addAndGet(attrs.size());
+                if (logger.isLoggable(Level.FINE)) logger.fine("Hash of other link reused: " + file.toString());
+                return cached;
             }
-            if (maybeDigest.isPresent()) {
-                requiredDigest = maybeDigest.get();
-            } else {
-                return Optional.empty();
+        }
+
+        // Get the required message digest - every thread has its own
+        Map<String, Optional<MessageDigest>> threadDigests = digests.get();
+        Optional<MessageDigest> maybeDigest = threadDigests.get(requiredAlgorithm);
+        if (maybeDigest == null) {
+            try {
+                maybeDigest = Optional.of(MessageDigest.getInstance(requiredAlgorithm));
+            } catch (NoSuchAlgorithmException e) {
+                logger.warning(String.format("Algorithm %s is not available.", requiredAlgorithm));
+                maybeDigest = Optional.empty();
             }
+            threadDigests.put(requiredAlgorithm, maybeDigest);
+        }
+        if (!maybeDigest.isPresent()) {
+            return Optional.empty();
         }
+        MessageDigest requiredDigest = maybeDigest.get();
 
         // read the file
-        try (FileInputStream inputStream = new FileInputStream(file.toFile())) {
+        IoTuner tuner = directoryTuners.getOrDefault(file.getParent(), fixedTuner);
+        try (IoTuner.Reading reading = tuner.read();
+             FileInputStream inputStream = new FileInputStream(file.toFile())) {
             FileChannel channel = inputStream.getChannel();
-            ByteBuffer buff = ByteBuffer.allocate(BLOCK_SIZE);
-            while(channel.read(buff) != -1)
+            ByteBuffer buff = buffer(tuner.getBufferSize());
+            int read;
+            while((read = channel.read(buff)) != -1)
             {
                 buff.flip();
                 requiredDigest.update(buff);
                 buff.clear();
+                reading.transferred(read);
             }
+        } catch (IOException e) {
+            requiredDigest.reset();
+            throw e;
         }
-        fileCount++;
-        fileBytes += attrs.size();
+        fileCount.incrementAndGet();
+        fileBytes.addAndGet(attrs.size());
 
         // compute the hash
-        return Optional.of(requiredDigest.digest());
+        byte[] hash = requiredDigest.digest();
+        if (fileKey != null) {
+            linkCache.put(fileKey, attrs.size(), attrs.lastModifiedTime(), requiredAlgorithm, hash);
+        }
+        return Optional.of(hash);
+    }
+
+    /**
+     * @param size the buffer size
+     * @return the read buffer of the current thread
+     */
+    private ByteBuffer buffer(int size) {
+        ByteBuffer buff = buffers.get();
+        if (buff == null || buff.capacity() != size) {
+            buff = ByteBuffer.allocate(size);
+            buffers.set(buff);
+        }
+        buff.clear();
+        return buff;
     }
 
     @Override
     public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
         logger.warning("Could not hash " + file);
+        scanner.getListener().fileFailed(file, exc);
+        incomplete(file.getParent());
         return FileVisitResult.CONTINUE;
     }
 
+    /**
+     * Reports a file that could not be read.
+     *
+     * @param file the file
+     * @param e the cause
+     */
+    protected void readFailed(Path file, IOException e) {
+        logger.severe("Could read file: " + file.toString() + ": " + e.toString());
+        scanner.getListener().fileFailed(file, e);
+    }
+
+    /**
+     * @param errors the number of other errors to add
+     */
+    protected void addOtherErrors(long errors) {
+        otherErrors.addAndGet(errors);
+    }
+
     public long getVerificationErrors() {
-        return verificationErrors;
+        return verificationErrors.get();
     }
 
     public long getOtherErrors() {
-        return otherErrors;
+        return otherErrors.get();
     }
 
     public long getFileCount() {
-        return fileCount;
+        return fileCount.get();
     }
 
     public long getFileBytes() {
-        return fileBytes;
+        return fileBytes.get();
+    }
+
+    public long getBytesDeduplicated() {
+        return bytesDeduplicated.get();
+    }
+
+    /**
+     * @return the I/O settings tuning arrived at per mount - empty unless tuning is adaptive
+     */
+    public synchronized Map<String, IoSettings> getIoSettings() {
+        Map<String, IoSettings> settings = new LinkedHashMap<>();
+        for (IoTuner tuner : tunersByDevice.values()) {
+            settings.put(tuner.getMount(), tuner.getSettings());
+        }
+        return settings;
     }
 }
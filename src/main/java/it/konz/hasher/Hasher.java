@@ -18,12 +18,14 @@
 
 package it.konz.hasher;
 
-import java.io.File;
 import java.nio.file.FileSystems;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.BitSet;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.*;
 
 /**
@@ -44,100 +46,105 @@ public class Hasher {
 
     private static final Logger logger = Logger.getLogger(Hasher.class.getName());
 
-    private final BitSet mode;
-    private final List<String> directories;
-    private final Level logLevel;
-    private final String algorithm;
-    private final String hashFile;
+    private final CommandLine commandLine;
 
     public static void main(String[] args) {
         Hasher hasher = new Hasher(CommandLine.readCommandLine(args));
 
         hasher.setupLogging();
 
-        if (!hasher.checkDirectoriesExist()) {
-            System.err.println("Could not find one of the directories. See log for details.");
-            System.exit(STATUS_MISSING_DIRECTORY);
-        }
+        try {
+            if (hasher.commandLine.getDaemon() != null) {
+                new HasherDaemon(FileSystems.getDefault().getPath(hasher.commandLine.getDaemon()),
+                        hasher.commandLine.getDaemonThreads()).run();
+                System.exit(STATUS_OK);
+            }
 
-        if (!hasher.checkAlgorithmExists()) {
-            System.err.println(String.format("Hashing algorithm %s is not available. See log for details.", hasher.algorithm));
-            System.exit(STATUS_ALGORITHM_NOT_AVAILABLE);
+            Instant startTime = Instant.now();
+            Map<Path, Stats> rootStats;
+            if (hasher.commandLine.getWorker() != null) {
+                rootStats = Collections.singletonMap(FileSystems.getDefault().getPath(hasher.commandLine.getWorker()),
+                        new ShardWorker(FileSystems.getDefault().getPath(hasher.commandLine.getWorker())).run());
+            } else {
+                rootStats = hasher.run();
+            }
+            Stats stats = Stats.aggregate(rootStats.values(), Duration.between(startTime, Instant.now()));
+            System.err.println();
+            if (rootStats.size() > 1) {
+                for (Map.Entry<Path, Stats> entry : rootStats.entrySet()) {
+                    System.err.println(entry.getKey() + ":");
+                    System.err.println(entry.getValue().toString());
+                }
+                System.err.println("Total:");
+            }
+            System.err.println(stats.toString());
+
+            int status = getStatus(stats);
+            if (status == STATUS_HASH_ERROR) {
+                System.err.println("There were verification errors. See log for details.");
+            } else if (status == STATUS_IO_ERROR) {
+                System.err.println("There were other errors (probably I/O errors) performing the operation. See log for details.");
+            } else {
+                System.err.println("Operation successful.");
+            }
+            System.exit(status);
+        } catch (ScanException e) {
+            logger.severe(e.getMessage());
+            System.err.println(e.getMessage());
+            System.exit(e.getStatus());
         }
+    }
 
-        Stats stats = hasher.run();
-        System.err.println();
-        System.err.println(stats.toString());
-
+    /**
+     * @param stats the stats of an operation
+     * @return the exit status for them
+     */
+    public static int getStatus(Stats stats) {
         if (stats.getVerificationErrors() != 0) {
-            System.err.println("There were verification errors. See log for details.");
-            System.exit(STATUS_HASH_ERROR);
+            return STATUS_HASH_ERROR;
         }
         if (stats.getOtherErrors() != 0) {
-            System.err.println("There were other errors (probably I/O errors) performing the operation. See log for details.");
-            System.exit(STATUS_IO_ERROR);
+            return STATUS_IO_ERROR;
         }
-
-        System.err.println("Operation successful.");
-        System.exit(STATUS_OK);
+        return STATUS_OK;
     }
 
     private Hasher(CommandLine commandLine) {
-        mode = new BitSet();
-        mode.set(Scanner.MODE_UPDATE, commandLine.isUpdate());
-        mode.set(Scanner.MODE_VERIFY, commandLine.isVerify());
-        directories = commandLine.getDirectories();
-        logLevel = commandLine.getLogLevel();
-        algorithm = commandLine.getAlgorithm();
-        hashFile = commandLine.getHashFile();
+        this.commandLine = commandLine;
     }
 
     private void setupLogging() {
         Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-        logger.setLevel(logLevel);
+        logger.setLevel(commandLine.getLogLevel());
     }
 
-    private boolean checkDirectoriesExist() {
-        for (String directoryString : directories) {
-            File directoryFile = FileSystems.getDefault().getPath(directoryString).toFile();
-            if (!directoryFile.exists()) {
-                logger.severe(String.format("Directory %s does not exist!", directoryString));
-                return false;
-            }
-            if (!directoryFile.isDirectory()) {
-                logger.severe(String.format("%s is not a directory!", directoryString));
-                return false;
-            }
+    private Map<Path, Stats> run() throws ScanException {
+        List<Path> roots = new ArrayList<>();
+        for (String directory : commandLine.getDirectories()) {
+            roots.add(FileSystems.getDefault().getPath(directory));
         }
-        return true;
-    }
-
-    private boolean checkAlgorithmExists() {
-        try {
-            MessageDigest.getInstance(algorithm);
-        } catch (NoSuchAlgorithmException e) {
-            logger.severe(e.getMessage());
-            return false;
+        HasherService service = new HasherService(commandLine.toScanConfig());
+        if (commandLine.getImportManifest() != null) {
+            Path manifest = FileSystems.getDefault().getPath(commandLine.getImportManifest());
+            return Collections.singletonMap(roots.get(0), service.importManifest(roots.get(0), manifest));
         }
-        return true;
-    }
-
-    private Stats run() {
-        Scanner scanner;
-        try {
-            scanner = new Scanner(mode, algorithm, hashFile);
-        } catch (NoSuchAlgorithmException e) {
-            // Cannot happen - we have checked this beforehand.
-            throw new RuntimeException(e);
+        if (commandLine.getExportManifest() != null) {
+            Path manifest = FileSystems.getDefault().getPath(commandLine.getExportManifest());
+            return Collections.singletonMap(roots.get(0), service.exportManifest(roots.get(0), manifest));
         }
-
-        Stats stats = Stats.EMPTY;
-        for (String directory : directories) {
-            logger.info(String.format("%s %s...", scanner.getOperationName(), directory));
-            stats = stats.add(scanner.scan(FileSystems.getDefault().getPath(directory)));
+        if (commandLine.getCopyTo() != null) {
+            Path target = FileSystems.getDefault().getPath(commandLine.getCopyTo());
+            return Collections.singletonMap(roots.get(0), service.copy(roots.get(0), target, commandLine.isCopyVerify()));
         }
-
-        return stats;
+        if (commandLine.isCompare()) {
+            return service.compare(roots);
+        }
+        if (commandLine.getCoordinator() != null) {
+            return new ShardCoordinator(FileSystems.getDefault().getPath(commandLine.getCoordinator()),
+                    commandLine.getArguments(), commandLine.toScanConfig(), commandLine.getWorkers(),
+                    commandLine.getShardDepth(), Duration.ofSeconds(commandLine.getShardTimeout())).run(roots);
+        }
+        return service.scan(roots, ScanListener.NONE);
     }
 
 }
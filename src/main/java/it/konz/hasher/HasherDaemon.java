@@ -0,0 +1,262 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import com.beust.jcommander.ParameterException;
+
+import java.io.*;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Long-running server that accepts scan requests over a UNIX domain socket, so the JVM is started (and the code is
+ * JIT-compiled) only once.
+ *
+ * Protocol: the client sends the command line arguments of the scan one per line, followed by an empty line. The
+ * server answers with one line per finding ({@code FAILED <file>} or {@code ERROR <file>: <cause>}), the stats and
+ * finally {@code STATUS <exit status>}. For example:
+ * <pre>printf -- '--verify\n/data\n\n' | socat - UNIX-CONNECT:/run/hasher.sock</pre>
+ * Only scans can be requested - imports, exports, compares, copies and sharded scans are refused. Directories must be
+ * absolute paths, and {@code --content-cache}, {@code --tuning-file} and hashes file names with a path are refused,
+ * so a request cannot make the daemon write files outside the requested trees. Requests for the same tree or for
+ * trees inside each other run one after the other.
+ *
+ * UNIX domain socket channels need a Java 16 runtime. They are looked up reflectively, so the rest of hasher still
+ * runs on Java 8.
+ */
+public class HasherDaemon {
+
+    public static final String STATUS_PREFIX = "STATUS ";
+
+    private static final Logger logger = Logger.getLogger(HasherDaemon.class.getName());
+
+    private final Path socketPath;
+    private final int threads;
+
+    /**
+     * Constructor.
+     *
+     * @param socketPath where to create the socket
+     * @param threads how many requests are served at the same time
+     */
+    public HasherDaemon(Path socketPath, int threads) {
+        this.socketPath = socketPath;
+        this.threads = threads;
+    }
+
+    /**
+     * Serves requests until the process is terminated.
+     *
+     * @throws ScanException if the socket cannot be created
+     */
+    public void run() throws ScanException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (ServerSocketChannel server = openServer()) {
+            logger.info("Listening on " + socketPath);
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.submit(() -> serve(client));
+            }
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Daemon socket failed: " + e, e);
+        } finally {
+            executor.shutdownNow();
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                logger.warning("Could not delete socket " + socketPath + ": " + e);
+            }
+        }
+    }
+
+    private ServerSocketChannel openServer() throws ScanException, IOException {
+        SocketAddress address;
+        ServerSocketChannel server;
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, socketPath);
+            server = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR,
+                    "UNIX domain sockets are not available - the daemon needs Java 16 or later.", e);
+        }
+
+        // A socket left behind by a killed daemon would make bind fail
+        Files.deleteIfExists(socketPath);
+        server.bind(address);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> socketPath.toFile().delete()));
+        return server;
+    }
+
+    /**
+     * Handles a single request.
+     *
+     * @param client the connection
+     */
+    private void serve(SocketChannel client) {
+        try (SocketChannel channel = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+
+            List<String> args = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                args.add(line);
+            }
+
+            out.println(STATUS_PREFIX + handle(args, out));
+            out.flush();
+        } catch (IOException e) {
+            logger.warning("Could not serve request: " + e);
+        }
+    }
+
+    /**
+     * Runs the scan of a request.
+     *
+     * @return the exit status
+     */
+    private int handle(List<String> args, PrintWriter out) {
+        CommandLine commandLine;
+        try {
+            commandLine = CommandLine.parse(args.toArray(new String[args.size()]));
+        } catch (ParameterException e) {
+            out.println(e.getMessage());
+            return Hasher.STATUS_COMMAND_LINE_ERROR;
+        }
+        String unsupported = unsupportedOption(commandLine);
+        if (unsupported != null) {
+            out.println("The daemon only runs scans - " + unsupported + " cannot be requested.");
+            return Hasher.STATUS_COMMAND_LINE_ERROR;
+        }
+        String invalid = invalidPath(commandLine);
+        if (invalid != null) {
+            out.println(invalid);
+            return Hasher.STATUS_COMMAND_LINE_ERROR;
+        }
+
+        List<Path> roots = new ArrayList<>();
+        for (String directory : commandLine.getDirectories()) {
+            roots.add(FileSystems.getDefault().getPath(directory));
+        }
+
+        ScanListener listener = new ScanListener() {
+            @Override
+            public void verificationFailed(Path file) {
+                synchronized (out) {
+                    out.println("FAILED " + file);
+                }
+            }
+
+            @Override
+            public void fileFailed(Path file, IOException e) {
+                synchronized (out) {
+                    out.println("ERROR " + file + ": " + e);
+                }
+            }
+        };
+
+        try {
+            Instant startTime = Instant.now();
+            Map<Path, Stats> rootStats = new HasherService(commandLine.toScanConfig()).scan(roots, listener);
+            Stats stats = Stats.aggregate(rootStats.values(), Duration.between(startTime, Instant.now()));
+            out.print(stats.toString());
+            return Hasher.getStatus(stats);
+        } catch (ScanException e) {
+            out.println(e.getMessage());
+            return e.getStatus();
+        }
+    }
+
+    /**
+     * @return the first option of a request that does not run a plain scan, or null if there is none
+     */
+    private static String unsupportedOption(CommandLine commandLine) {
+        if (commandLine.getDaemon() != null) {
+            return "--daemon";
+        }
+        if (commandLine.getWorker() != null) {
+            return "--worker";
+        }
+        if (commandLine.getCoordinator() != null) {
+            return "--coordinator";
+        }
+        if (commandLine.getImportManifest() != null) {
+            return "--import";
+        }
+        if (commandLine.getExportManifest() != null) {
+            return "--export";
+        }
+        if (commandLine.isCompare()) {
+            return "--compare";
+        }
+        if (commandLine.getCopyTo() != null) {
+            return "--copy-to";
+        }
+        return null;
+    }
+
+    /**
+     * The daemon's working directory means nothing to a client, and a request must not make the daemon create or
+     * overwrite files other than the hashes files of the requested trees.
+     *
+     * @return why the paths of a request are refused, or null if they are fine
+     */
+    private static String invalidPath(CommandLine commandLine) {
+        if (commandLine.getContentCache() != null) {
+            return "--content-cache cannot be requested - the daemon writes no files named by a client.";
+        }
+        if (commandLine.getTuningFile() != null) {
+            return "--tuning-file cannot be requested - the daemon writes no files named by a client.";
+        }
+        String hashFile = commandLine.getHashFile();
+        if (hashFile.isEmpty() || hashFile.contains("/") || hashFile.contains(File.separator)
+                || hashFile.equals(".") || hashFile.equals("..")) {
+            return "The hashes file must be a plain file name: " + hashFile;
+        }
+        List<String> directories = new ArrayList<>(commandLine.getDirectories());
+        if (commandLine.getReference() != null) {
+            directories.add(commandLine.getReference());
+        }
+        for (String directory : directories) {
+            if (!FileSystems.getDefault().getPath(directory).isAbsolute()) {
+                return "Directories must be absolute paths: " + directory;
+            }
+        }
+        return null;
+    }
+}
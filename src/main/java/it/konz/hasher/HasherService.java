@@ -0,0 +1,378 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Library entry point: scans directories without touching the process - no exits, no output besides logging.
+ *
+ * Instances are thread-safe. Every scanned directory gets its own {@link Scanner}, so any number of scans may run at
+ * the same time. Scans of the same tree or of trees inside each other would write the same hashes files, so they wait
+ * for each other.
+ */
+public class HasherService {
+
+    private static final Logger logger = Logger.getLogger(HasherService.class.getName());
+
+    // The trees being scanned in this JVM
+    private static final Set<Path> activeRoots = new HashSet<>();
+
+    private final ScanConfig config;
+
+    /**
+     * Constructor.
+     *
+     * @param config the settings - copied, so later changes have no effect
+     * @throws ScanException if the settings cannot be used
+     */
+    public HasherService(ScanConfig config) throws ScanException {
+        this.config = config.clone();
+
+        if (this.config.getReference() != null) {
+            if (!Files.isDirectory(this.config.getReference())) {
+                throw new ScanException(Hasher.STATUS_MISSING_DIRECTORY,
+                        String.format("Reference directory %s does not exist!", this.config.getReference()));
+            }
+            if (this.config.isStreaming()) {
+                throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "A reference cannot be used in streaming mode.");
+            }
+        }
+        if (this.config.getStorage() != HashStorage.FILE && this.config.isStreaming()) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "Streaming mode only works with hashes files.");
+        }
+        if (this.config.isVirtualThreads()) {
+            if (!ConcurrentWalker.isSupported()) {
+                throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "Virtual threads need Java 21 or later.");
+            }
+            if (this.config.isStreaming()) {
+                throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "Virtual threads cannot be used in streaming mode.");
+            }
+        }
+        try {
+            this.config.createFilter();
+        } catch (IllegalArgumentException e) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "Invalid filter pattern: " + e.getMessage(), e);
+        }
+        try {
+            MessageDigest.getInstance(this.config.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new ScanException(Hasher.STATUS_ALGORITHM_NOT_AVAILABLE,
+                    String.format("Hashing algorithm %s is not available.", this.config.getAlgorithm()), e);
+        }
+    }
+
+    /**
+     * Scans a single directory.
+     *
+     * @param root the directory
+     * @param listener gets the findings of the scan
+     * @return the stats
+     * @throws ScanException if the directory does not exist or the scan was aborted
+     */
+    public Stats scan(Path root, ScanListener listener) throws ScanException {
+        return scan(Collections.singletonList(root), listener).get(root);
+    }
+
+    /**
+     * Scans several directories - up to {@link ScanConfig#getParallelRoots()} of them at the same time.
+     *
+     * @param roots the directories - none may be listed twice or lie inside another one
+     * @param listener gets the findings of the scan
+     * @return the stats per directory, in the order of roots
+     * @throws ScanException if a directory does not exist, the directories overlap or the scan was aborted
+     */
+    public Map<Path, Stats> scan(List<Path> roots, ScanListener listener) throws ScanException {
+        if (!config.isUpdate() && !config.isVerify()) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "Use update and/or verify.");
+        }
+        for (Path root : roots) {
+            checkDirectory(root);
+            if (config.getStorage() == HashStorage.XATTR && !XattrStore.isSupported(root)) {
+                throw new ScanException(Hasher.STATUS_IO_ERROR, String.format(
+                        "%s does not support extended attributes. Use AUTO storage to fall back to hashes files.", root));
+            }
+        }
+        checkDisjoint(roots);
+        if (roots.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(config.getParallelRoots(), roots.size()));
+        Map<Path, Future<Stats>> futures = new LinkedHashMap<>();
+        try {
+            for (Path root : roots) {
+                futures.put(root, executor.submit(() -> {
+                    Path activeRoot = lockRoot(root);
+                    try {
+                        Scanner scanner = config.createScanner();
+                        scanner.setListener(listener);
+                        logger.info(String.format("%s %s...", scanner.getOperationName(), root));
+                        Stats stats = scanner.scan(root);
+                        listener.rootFinished(root, stats);
+                        return stats;
+                    } finally {
+                        unlockRoot(activeRoot);
+                    }
+                }));
+            }
+
+            Map<Path, Stats> stats = new LinkedHashMap<>();
+            for (Map.Entry<Path, Future<Stats>> future : futures.entrySet()) {
+                stats.put(future.getKey(), future.getValue().get());
+            }
+            return stats;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Interrupted while scanning.", e);
+        } catch (ExecutionException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Scan aborted: " + e.getCause(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares the hashes files of directory trees with the first one. No file is read. Subtrees whose digests match
+     * are skipped as a whole.
+     *
+     * @param roots the reference directory followed by the directories to compare with it
+     * @return the stats per compared directory - differences count as verification errors
+     * @throws ScanException if a directory does not exist or cannot be walked
+     */
+    public Map<Path, Stats> compare(List<Path> roots) throws ScanException {
+        for (Path root : roots) {
+            checkDirectory(root);
+        }
+        if (roots.size() < 2) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "List at least two directories to compare.");
+        }
+
+        Path reference = roots.get(0);
+        Map<Path, Stats> stats = new LinkedHashMap<>();
+        for (Path other : roots.subList(1, roots.size())) {
+            logger.info(String.format("Comparing %s with %s...", other, reference));
+            Instant startTime = Instant.now();
+            CompareVisitor visitor = new CompareVisitor(config.getHashFile(), reference, other);
+            try {
+                Files.walkFileTree(reference, visitor);
+            } catch (IOException e) {
+                throw new ScanException(Hasher.STATUS_IO_ERROR, "Compare aborted: " + e, e);
+            }
+            logger.info(String.format("%d differences, %d identical subtrees skipped", visitor.getCompareErrors(),
+                    visitor.getSkippedSubtrees()));
+            stats.put(other, new Stats(Duration.between(startTime, Instant.now()), 0L, 0L, visitor.getCompareErrors(),
+                    visitor.getOtherErrors()));
+        }
+        return stats;
+    }
+
+    /**
+     * Creates or extends the hashes files of a directory tree from an md5sum / sha256sum manifest. The listed files
+     * are not read - only their size and modification time.
+     *
+     * @param root the directory the paths in the manifest are relative to
+     * @param manifest the manifest
+     * @return the stats
+     * @throws ScanException if the directory does not exist or the manifest cannot be read
+     */
+    public Stats importManifest(Path root, Path manifest) throws ScanException {
+        checkDirectory(root);
+        logger.info(String.format("Importing %s into %s...", manifest, root));
+        try {
+            return new ManifestImporter(root, config.getHashFile(), config.getDurability(), config.getManifestThreads())
+                    .importManifest(manifest);
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not read manifest: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Interrupted while importing.", e);
+        }
+    }
+
+    /**
+     * Writes an md5sum / sha256sum manifest of all hashes of the configured algorithm in a directory tree.
+     *
+     * @param root the directory the paths in the manifest are relative to
+     * @param manifest the manifest - replaced if it exists
+     * @return the stats
+     * @throws ScanException if the directory does not exist or the manifest cannot be written
+     */
+    public Stats exportManifest(Path root, Path manifest) throws ScanException {
+        checkDirectory(root);
+        logger.info(String.format("Exporting %s to %s...", root, manifest));
+        try {
+            return new ManifestExporter(root, config.getHashFile(), config.getAlgorithm(), config.getManifestThreads())
+                    .exportManifest(manifest);
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not write manifest: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Interrupted while exporting.", e);
+        }
+    }
+
+    /**
+     * Copies a directory tree and writes the hashes files of the copy in the same pass, so every file is read once.
+     *
+     * @param source the directory to copy
+     * @param target where to copy it - must not exist or be an empty directory
+     * @param verify read every copied file back and compare its hash?
+     * @return the stats - copies that differ from their source count as verification errors
+     * @throws ScanException if a directory cannot be used or the copy was aborted
+     */
+    public Stats copy(Path source, Path target, boolean verify) throws ScanException {
+        checkDirectory(source);
+        if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR,
+                    String.format("%s cannot be copied into itself.", source));
+        }
+        try {
+            if (Files.exists(target)) {
+                if (!Files.isDirectory(target)) {
+                    throw new ScanException(Hasher.STATUS_MISSING_DIRECTORY, String.format("%s is not a directory!", target));
+                }
+                try (Stream<Path> entries = Files.list(target)) {
+                    if (entries.findAny().isPresent()) {
+                        throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR,
+                                String.format("Directory %s is not empty.", target));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not read " + target + ": " + e, e);
+        }
+
+        logger.info(String.format("Copying %s to %s...", source, target));
+        try {
+            return new TreeCopier(source, target, config, verify).copy();
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Copy aborted: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Interrupted while copying.", e);
+        }
+    }
+
+    private static void checkDirectory(Path root) throws ScanException {
+        if (!Files.exists(root)) {
+            throw new ScanException(Hasher.STATUS_MISSING_DIRECTORY, String.format("Directory %s does not exist!", root));
+        }
+        if (!Files.isDirectory(root)) {
+            throw new ScanException(Hasher.STATUS_MISSING_DIRECTORY, String.format("%s is not a directory!", root));
+        }
+    }
+
+    /**
+     * Checks that no directory is listed twice or lies inside another one - their scans would write the same hashes
+     * files.
+     *
+     * @param roots existing directories
+     * @throws ScanException if the directories overlap
+     */
+    static void checkDisjoint(List<Path> roots) throws ScanException {
+        List<Path> paths = new ArrayList<>();
+        for (Path root : roots) {
+            Path path = canonical(root);
+            for (int i = 0; i < paths.size(); i++) {
+                if (path.startsWith(paths.get(i)) || paths.get(i).startsWith(path)) {
+                    throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, String.format(
+                            "%s and %s overlap - list every tree only once.", roots.get(i), root));
+                }
+            }
+            paths.add(path);
+        }
+    }
+
+    /**
+     * @return the real path of a directory, so links and relative paths to the same tree compare equal
+     */
+    private static Path canonical(Path root) {
+        try {
+            return root.toRealPath();
+        } catch (IOException e) {
+            return root.toAbsolutePath().normalize();
+        }
+    }
+
+    /**
+     * @return a copy of the settings
+     */
+    public ScanConfig getConfig() {
+        return config.clone();
+    }
+
+    /**
+     * Waits until no other scan works on the tree of a directory or a tree it is part of, then claims it.
+     *
+     * @param root the directory
+     * @return the claimed path - to be passed to {@link #unlockRoot}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static Path lockRoot(Path root) throws InterruptedException {
+        Path path = canonical(root);
+        synchronized (activeRoots) {
+            boolean logged = false;
+            while (overlaps(path)) {
+                if (!logged) {
+                    logger.info(String.format("Waiting for another scan of %s to finish...", root));
+                    logged = true;
+                }
+                activeRoots.wait();
+            }
+            activeRoots.add(path);
+        }
+        return path;
+    }
+
+    private static boolean overlaps(Path path) {
+        for (Path active : activeRoots) {
+            if (path.startsWith(active) || active.startsWith(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void unlockRoot(Path path) {
+        synchronized (activeRoots) {
+            activeRoots.remove(path);
+            activeRoots.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the hashes files on a background thread, so slow metadata writes do not stall the walk.
+ *
+ * Every hashes file is written to a temporary file in the same directory first and then renamed over the old one.
+ * A crash therefore leaves either the old or the new file behind, never a truncated one.
+ *
+ * If only a few entries of a large hashes file changed, the changes are appended to the journal next to it instead.
+ * The hashes file is only rewritten (compacted) once the journal grows past the configured ratio of its size.
+ *
+ * Directories kept in extended attributes get the changed entries written to their files instead, see
+ * {@link XattrStore}.
+ */
+class HashesWriter implements Closeable {
+
+    /**
+     * Suffix of the temporary file a hashes file is written to before it is renamed.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * How many files are fsynced together in {@link Durability#BATCH} mode.
+     */
+    public static final int BATCH_SIZE = 32;
+
+    /**
+     * Hashes files smaller than this are always rewritten - a journal would not save anything.
+     */
+    public static final long MIN_JOURNAL_BASE_SIZE = 64L * 1024L;
+
+    private static final Logger logger = Logger.getLogger(HashesWriter.class.getName());
+
+    private static final Job END = new Job(null, null, false, false);
+
+    private final String hashFileName;
+    private final Durability durability;
+    private final HashStorage storage;
+    private final double journalRatio;
+    private final BlockingQueue<Job> queue;
+    private final Thread thread;
+    private final List<Path> pending = new ArrayList<>();
+    private final List<Path> pendingJournals = new ArrayList<>();
+    // Directories whose attributes were written, with the written files - and the migrated ones among them
+    private final Map<Path, List<Path>> pendingAttributes = new LinkedHashMap<>();
+    private final Set<Path> pendingMigrations = new HashSet<>();
+    private long errors = 0L;
+    private volatile BooleanSupplier cancelled = () -> false;
+
+    /**
+     * A finished directory waiting to be written.
+     */
+    private static class Job {
+        private final Path dir;
+        private final Collection<HashEntry> entries;
+        private final boolean attributes;
+        private final boolean migrated;
+
+        private Job(Path dir, Collection<HashEntry> entries, boolean attributes, boolean migrated) {
+            this.dir = dir;
+            this.entries = entries;
+            this.attributes = attributes;
+            this.migrated = migrated;
+        }
+    }
+
+    /**
+     * Constructor. Starts the writer thread.
+     *
+     * @param hashFileName the hashes file name
+     * @param durability when to fsync the written files
+     * @param queueSize how many directories may wait to be written before {@link #submit} blocks
+     * @param journalRatio the journal size relative to the hashes file size that triggers a compaction
+     */
+    public HashesWriter(String hashFileName, Durability durability, int queueSize, double journalRatio) {
+        this(hashFileName, durability, HashStorage.FILE, queueSize, journalRatio);
+    }
+
+    /**
+     * Constructor. Starts the writer thread.
+     *
+     * @param hashFileName the hashes file name
+     * @param durability when to fsync the written files
+     * @param storage where the hashes are kept - with {@link HashStorage#AUTO}, directories whose files cannot take
+     *                the attributes get a hashes file instead
+     * @param queueSize how many directories may wait to be written before {@link #submit} blocks
+     * @param journalRatio the journal size relative to the hashes file size that triggers a compaction
+     */
+    public HashesWriter(String hashFileName, Durability durability, HashStorage storage, int queueSize,
+                        double journalRatio) {
+        this.hashFileName = hashFileName;
+        this.durability = durability;
+        this.storage = storage;
+        this.journalRatio = journalRatio;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.thread = new Thread(this::run, "hashes-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the entries of a directory for writing. Blocks while the queue is full.
+     *
+     * The writer takes ownership of the entries - the caller must not modify them afterwards.
+     *
+     * @param dir the directory
+     * @param entries all entries of the directory, including the ones that do not exist anymore
+     * @throws InterruptedIOException if interrupted while waiting for space in the queue
+     */
+    public void submit(Path dir, Collection<HashEntry> entries) throws InterruptedIOException {
+        submit(dir, entries, false, false);
+    }
+
+    /**
+     * Queues the entries of a directory for writing. Blocks while the queue is full.
+     *
+     * The writer takes ownership of the entries - the caller must not modify them afterwards.
+     *
+     * @param dir the directory
+     * @param entries all entries of the directory, including the ones that do not exist anymore
+     * @param attributes write them to extended attributes instead of the hashes file?
+     * @param migrated were they read from the other storage? Then all of them are written.
+     * @throws InterruptedIOException if interrupted while waiting for space in the queue
+     */
+    public void submit(Path dir, Collection<HashEntry> entries, boolean attributes, boolean migrated)
+            throws InterruptedIOException {
+        try {
+            queue.put(new Job(dir, entries, attributes, migrated));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing hash file for " + dir);
+        }
+    }
+
+    /**
+     * Writes all queued directories and stops the writer thread.
+     *
+     * @throws InterruptedIOException if interrupted while waiting for the writer
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the hashes writer");
+        }
+    }
+
+    /**
+     * @param cancelled tells when the scan was cancelled - queued and pending hashes files are dropped from then on
+     */
+    public void setCancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return the number of hashes files that could not be written - only valid after {@link #close()}
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    private void run() {
+        while (true) {
+            Job job;
+            try {
+                // Commit the pending batch as soon as there is nothing else to do
+                job = pending.isEmpty() && pendingJournals.isEmpty() && pendingAttributes.isEmpty() ? queue.take()
+                        : queue.poll();
+            } catch (InterruptedException e) {
+                logger.severe("Hashes writer interrupted - queued hash files are lost.");
+                errors++;
+                return;
+            }
+            if (job == null) {
+                commit();
+                continue;
+            }
+            if (job == END) {
+                commit();
+                return;
+            }
+            if (cancelled.getAsBoolean()) {
+                continue;
+            }
+            try {
+                write(job);
+            } catch (RuntimeException e) {
+                // One broken directory must not keep the others from being written
+                logger.warning("Could not write hash file for " + job.dir + ": " + e);
+                errors++;
+            }
+        }
+    }
+
+    /**
+     * Commits the pending batch. Should that fail unexpectedly, the batch is dropped rather than retried forever.
+     */
+    private void commit() {
+        if (cancelled.getAsBoolean()) {
+            for (Path tempFile : pending) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    if (logger.isLoggable(Level.FINE)) logger.fine("Could not delete " + tempFile + ": " + e);
+                }
+            }
+            pending.clear();
+            pendingJournals.clear();
+            pendingAttributes.clear();
+            pendingMigrations.clear();
+            return;
+        }
+        try {
+            commitPending();
+        } catch (RuntimeException e) {
+            logger.warning("Could not commit hash files: " + e);
+            errors++;
+            pending.clear();
+            pendingJournals.clear();
+            pendingAttributes.clear();
+            pendingMigrations.clear();
+        }
+    }
+
+    private void write(Job job) {
+        Path hashFile = job.dir.resolve(hashFileName);
+        if (job.attributes && writeAttributes(job, hashFile)) {
+            return;
+        }
+        if (!appendToJournal(job, hashFile)) {
+            rewrite(job, hashFile);
+        }
+    }
+
+    /**
+     * Writes the entries to the attributes of the files and removes the hashes file they were moved from - with
+     * {@link Durability#BATCH} and {@link Durability#SYNC} only once the attributes are synced.
+     *
+     * @return false if the hashes file has to be written instead
+     */
+    private boolean writeAttributes(Job job, Path hashFile) {
+        List<Path> written;
+        try {
+            written = XattrStore.write(job.dir, job.entries, job.migrated);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (storage == HashStorage.AUTO) {
+                if (logger.isLoggable(Level.FINE)) logger.fine("Keeping hash file for " + job.dir + ": " + e);
+                XattrStore.keepHashesFile(job.dir);
+                return false;
+            }
+            logger.warning("Could not write attributes in " + job.dir + ": " + e);
+            errors++;
+            return true;
+        }
+
+        if (durability == Durability.BATCH) {
+            pendingAttributes.put(job.dir, written);
+            if (job.migrated) {
+                pendingMigrations.add(job.dir);
+            }
+            if (pendingAttributes.size() >= BATCH_SIZE) {
+                commitPending();
+            }
+            return true;
+        }
+        if (durability == Durability.SYNC && !syncAttributes(written)) {
+            // The hashes file stays, so nothing is lost
+            return true;
+        }
+        if (job.migrated) {
+            removeMigrated(job.dir);
+        }
+        return true;
+    }
+
+    /**
+     * Fsyncs the files whose attributes were written, which pushes the attributes to the disk.
+     *
+     * @return false if one of them could not be synced
+     */
+    private boolean syncAttributes(List<Path> written) {
+        for (Path path : written) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                logger.warning("Could not sync attributes of " + path + ": " + e);
+                errors++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the hashes file and journal whose entries were moved to attributes.
+     */
+    private void removeMigrated(Path dir) {
+        Path hashFile = dir.resolve(hashFileName);
+        try {
+            Files.deleteIfExists(hashFile);
+            Files.deleteIfExists(HashEntry.journalPath(hashFile));
+            if (durability == Durability.SYNC) {
+                syncDirectory(dir);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not remove hash file: " + hashFile + ": " + e);
+            errors++;
+        }
+    }
+
+    /**
+     * Appends the changed and removed entries to the journal, unless that would make it too large.
+     *
+     * @return false if the hashes file has to be rewritten instead
+     */
+    private boolean appendToJournal(Job job, Path hashFile) {
+        if (journalRatio <= 0.0d) {
+            return false;
+        }
+        Path journal = HashEntry.journalPath(hashFile);
+
+        try {
+            long baseSize = Files.exists(hashFile) ? Files.size(hashFile) : 0L;
+            if (baseSize < MIN_JOURNAL_BASE_SIZE) {
+                return false;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (HashEntry entry : job.entries) {
+                if (entry.wasChanged() || !entry.stillExists()) {
+                    sb.append(entry.toJournalString()).append(System.lineSeparator());
+                }
+            }
+            byte[] lines = sb.toString().getBytes();
+
+            long journalSize = Files.exists(journal) ? Files.size(journal) : 0L;
+            if (journalSize > 0L && !isJournalOf(hashFile, journal)) {
+                // Left behind by a crash while the hashes file was replaced - readers ignore it
+                Files.delete(journal);
+                journalSize = 0L;
+            }
+            if (journalSize + lines.length > baseSize * journalRatio) {
+                return false;
+            }
+
+            // A crash may have torn the last line - never glue new lines onto it
+            boolean torn = journalSize > 0L && !endsWithNewline(journal, journalSize);
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                if (torn) {
+                    writeFully(channel, System.lineSeparator().getBytes());
+                }
+                if (journalSize == 0L) {
+                    writeFully(channel, (HashEntry.journalHeader(hashFile) + System.lineSeparator()).getBytes());
+                }
+                writeFully(channel, lines);
+                if (durability == Durability.SYNC) {
+                    channel.force(false);
+                }
+            }
+            if (durability == Durability.SYNC && journalSize == 0L) {
+                syncDirectory(job.dir);
+            }
+            if (durability == Durability.BATCH) {
+                pendingJournals.add(journal);
+                if (pendingJournals.size() >= BATCH_SIZE) {
+                    commitPending();
+                }
+            }
+        } catch (IOException e) {
+            // Rewriting the hashes file also replaces the possibly damaged journal
+            logger.warning("Could not append to journal: " + journal + ": " + e);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isJournalOf(Path hashFile, Path journal) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(journal.toFile()))) {
+            String firstLine = br.readLine();
+            return firstLine == null || HashEntry.isJournalOf(hashFile, firstLine);
+        }
+    }
+
+    private static boolean endsWithNewline(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buff = ByteBuffer.wrap(bytes);
+        while (buff.hasRemaining()) {
+            channel.write(buff);
+        }
+    }
+
+    /**
+     * Writes all existing entries to a temporary file and moves it over the hashes file.
+     */
+    private void rewrite(Job job, Path hashFile) {
+        Path tempFile = hashFile.resolveSibling(hashFileName + TEMP_SUFFIX);
+
+        List<HashEntry> entries = new ArrayList<>(job.entries.size());
+        for (HashEntry entry : job.entries) {
+            if (entry.stillExists()) {
+                entries.add(entry);
+            }
+        }
+
+        try {
+            writeSorted(tempFile, entries, durability == Durability.SYNC);
+        } catch (IOException e) {
+            fail(hashFile, tempFile, e);
+            return;
+        }
+
+        if (durability == Durability.BATCH) {
+            pending.add(tempFile);
+            if (pending.size() >= BATCH_SIZE) {
+                commitPending();
+            }
+            return;
+        }
+
+        try {
+            moveIntoPlace(tempFile, hashFile);
+            if (durability == Durability.SYNC) {
+                syncDirectory(job.dir);
+            }
+        } catch (IOException e) {
+            fail(hashFile, tempFile, e);
+        }
+    }
+
+    /**
+     * Writes entries sorted by name to a file.
+     *
+     * @param file the file - usually the temporary file of a hashes file
+     * @param entries the entries - sorted in place
+     * @param sync fsync the file before returning?
+     * @throws IOException if writing fails
+     */
+    static void writeSorted(Path file, List<HashEntry> entries, boolean sync) throws IOException {
+        Collections.sort(entries);
+        try (FileOutputStream out = new FileOutputStream(file.toFile());
+             BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out))) {
+            for (HashEntry entry : entries) {
+                bw.write(entry.toString());
+                bw.newLine();
+            }
+            bw.flush();
+            if (sync) {
+                out.getFD().sync();
+            }
+        }
+    }
+
+    /**
+     * Removes the digest from the hashes file of a directory, for changes made without computing a new one.
+     *
+     * @param dir the directory
+     * @param hashFileName the hashes file name
+     * @param sync fsync the rewritten file and the directory?
+     * @return false if the directory had no digest
+     * @throws IOException if the hashes file cannot be read or written
+     */
+    static boolean dropDigest(Path dir, String hashFileName, boolean sync) throws IOException {
+        Path hashFile = dir.resolve(hashFileName);
+        if (!Files.exists(hashFile)) {
+            return false;
+        }
+        Map<String, HashEntry> hashEntries = new HashMap<>();
+        HashEntry.parseHashesFile(hashFile, hashEntries);
+        if (hashEntries.remove(HashEntry.DIRECTORY_DIGEST) == null) {
+            return false;
+        }
+
+        Path tempFile = hashFile.resolveSibling(hashFileName + TEMP_SUFFIX);
+        writeSorted(tempFile, new ArrayList<>(hashEntries.values()), sync);
+        moveIntoPlace(tempFile, hashFile);
+        if (sync) {
+            syncDirectory(dir);
+        }
+        return true;
+    }
+
+    /**
+     * Fsyncs all pending temporary files and journals, renames the temporary files and fsyncs their directories.
+     */
+    private void commitPending() {
+        for (Path journal : pendingJournals) {
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (IOException e) {
+                logger.warning("Could not sync journal: " + journal + ": " + e);
+                errors++;
+            }
+        }
+        pendingJournals.clear();
+
+        for (Map.Entry<Path, List<Path>> written : pendingAttributes.entrySet()) {
+            if (syncAttributes(written.getValue()) && pendingMigrations.contains(written.getKey())) {
+                removeMigrated(written.getKey());
+                syncDirectory(written.getKey());
+            }
+        }
+        pendingAttributes.clear();
+        pendingMigrations.clear();
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Path> synced = new ArrayList<>(pending.size());
+        for (Path tempFile : pending) {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+                synced.add(tempFile);
+            } catch (IOException e) {
+                fail(tempFile.resolveSibling(hashFileName), tempFile, e);
+            }
+        }
+
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path tempFile : synced) {
+            Path hashFile = tempFile.resolveSibling(hashFileName);
+            try {
+                moveIntoPlace(tempFile, hashFile);
+                dirs.add(tempFile.getParent());
+            } catch (IOException e) {
+                fail(hashFile, tempFile, e);
+            }
+        }
+        for (Path dir : dirs) {
+            syncDirectory(dir);
+        }
+
+        pending.clear();
+    }
+
+    /**
+     * Replaces the hashes file and drops its journal, which is now contained in the hashes file.
+     *
+     * Should we crash in between, the journal is left behind. Its first line names the replaced version of the hashes
+     * file, so it is ignored - replaying its older entries on top of the new file would cause files to be hashed again.
+     */
+    static void moveIntoPlace(Path tempFile, Path hashFile) throws IOException {
+        try {
+            Files.move(tempFile, hashFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, hashFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(HashEntry.journalPath(hashFile));
+    }
+
+    /**
+     * Makes the rename durable. Not every OS allows opening directories, so failures are only logged.
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (logger.isLoggable(Level.FINE)) logger.fine("Could not sync directory " + dir + ": " + e);
+        }
+    }
+
+    private void fail(Path hashFile, Path tempFile, IOException e) {
+        logger.warning("Could not write hash file: " + hashFile + ": " + e);
+        errors++;
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException ignored) {
+            // We already reported the original error
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads that hash the files found by the walk, largest work first.
+ *
+ * Every task states how many bytes it will read. Waiting tasks are ordered by that size, so a huge file found late in
+ * the walk does not end up as the single task still running after all others are done. The walk blocks while too many
+ * tasks are waiting, which also bounds how far ahead of the hashing it can get.
+ */
+class HashingPool {
+
+    /**
+     * How many tasks per thread may wait before {@link #execute} blocks.
+     */
+    public static final int QUEUED_PER_THREAD = 16;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore queued;
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<AtomicLong> busy = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<AtomicLong> workerBusy = ThreadLocal.withInitial(() -> {
+        AtomicLong nanos = new AtomicLong();
+        busy.add(nanos);
+        return nanos;
+    });
+    private final long startTime = System.nanoTime();
+    private long endTime = 0L;
+
+    /**
+     * A piece of work and its size.
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        private final long size;
+        private final long number;
+        private final Runnable work;
+
+        private Task(long size, Runnable work) {
+            this.size = size;
+            this.number = sequence.getAndIncrement();
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                work.run();
+            } finally {
+                workerBusy.get().addAndGet(System.nanoTime() - start);
+                queued.release();
+            }
+        }
+
+        /**
+         * Larger tasks first, tasks of the same size in the order they came.
+         */
+        @Override
+        public int compareTo(Task o) {
+            int bySize = Long.compare(o.size, size);
+            return bySize != 0 ? bySize : Long.compare(number, o.number);
+        }
+    }
+
+    /**
+     * Constructor. Starts the threads on demand.
+     *
+     * @param threads the number of threads
+     */
+    public HashingPool(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "hasher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.queued = new Semaphore(threads * QUEUED_PER_THREAD);
+    }
+
+    /**
+     * Hands work to the threads. Blocks while too many tasks are waiting.
+     *
+     * @param size the number of bytes the work reads
+     * @param work the work - must not throw
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void execute(long size, Runnable work) throws InterruptedIOException {
+        try {
+            queued.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the hashing threads");
+        }
+        executor.execute(new Task(size, work));
+    }
+
+    /**
+     * Waits until all work is done and stops the threads.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedIOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the hashing threads");
+        } finally {
+            endTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the fraction of the pool's lifetime every thread spent working - only valid after
+     * {@link #awaitCompletion()}
+     */
+    public List<Double> getUtilisation() {
+        long lifetime = Math.max(1L, endTime - startTime);
+        List<Double> utilisation = new ArrayList<>();
+        synchronized (busy) {
+            for (AtomicLong nanos : busy) {
+                utilisation.add(nanos.get() / (double) lifetime);
+            }
+        }
+        return utilisation;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * How a mount is read: the number of files read at the same time and the read buffer size.
+ *
+ * The settings found by adaptive tuning can be saved to a properties file and used as the starting point of the next
+ * run. The file maps the mount (as printed by {@link java.nio.file.FileStore#toString()}) to
+ * '&lt;reads in flight&gt;,&lt;buffer bytes&gt;'.
+ */
+public class IoSettings {
+
+    private final int concurrency;
+    private final int bufferSize;
+
+    public IoSettings(int concurrency, int bufferSize) {
+        this.concurrency = concurrency;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the number of files read at the same time
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the read buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d reads in flight, %d KiB buffer", concurrency, bufferSize / Stats.KI);
+    }
+
+    /**
+     * Reads saved settings.
+     *
+     * @param file the properties file
+     * @return the settings per mount - malformed ones are skipped
+     * @throws IOException if the file cannot be read
+     */
+    public static Map<String, IoSettings> load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+
+        Map<String, IoSettings> settings = new LinkedHashMap<>();
+        for (String mount : properties.stringPropertyNames()) {
+            String[] parts = properties.getProperty(mount).split(",");
+            try {
+                settings.put(mount, new IoSettings(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // Tuning starts from the defaults for this mount
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Adds settings to a properties file. Settings of other mounts already in the file are kept.
+     *
+     * @param file the properties file
+     * @param settings the settings per mount
+     * @throws IOException if the file cannot be written
+     */
+    public static synchronized void save(Path file, Map<String, IoSettings> settings) throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        for (Map.Entry<String, IoSettings> entry : settings.entrySet()) {
+            properties.setProperty(entry.getKey(),
+                    entry.getValue().getConcurrency() + "," + entry.getValue().getBufferSize());
+        }
+
+        Path tempFile = file.resolveSibling(file.getFileName() + HashesWriter.TEMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            properties.store(out, "Hasher I/O settings per mount");
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits and tunes how the files of one mount are read.
+ *
+ * Every file is read within a {@link Reading}, so no more than {@link #getConcurrency()} files of the mount are read at
+ * the same time. In adaptive mode the throughput is measured in windows of half a second and the settings are
+ * tuned by hill-climbing: a window measures the current settings, the next one probes a single step of the number of
+ * reads in flight (one more or less) or of the buffer size (double or half). A probe is kept if it gained at least
+ * {@link #MIN_GAIN}, otherwise it is undone and the next probe of that setting goes the other way. If the reading
+ * threads use more CPU than the cap allows, the reads in flight are halved right away.
+ */
+class IoTuner {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The throughput gain a probe must achieve to be kept.
+     */
+    public static final double MIN_GAIN = 0.05d;
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500L);
+
+    /**
+     * How many bytes are read between two measurements of the CPU time.
+     */
+    private static final long CPU_SAMPLE_BYTES = 1024L * 1024L;
+
+    private static final Logger logger = Logger.getLogger(IoTuner.class.getName());
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+    private static final int cores = Runtime.getRuntime().availableProcessors();
+
+    private final String mount;
+    private final boolean adaptive;
+    private final int maxConcurrency;
+    private final double cpuCap;
+
+    private volatile int concurrency;
+    private volatile int bufferSize;
+    private int inFlight = 0;
+
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0L;
+    private long windowCpu = 0L;
+
+    private boolean probing = false;
+    private boolean probeBuffer = false;
+    private int concurrencyStep = 1;
+    private boolean bufferUp = true;
+    private double baseline = 0.0d;
+    private double lastCpu = 0.0d;
+    private int previousConcurrency;
+    private int previousBufferSize;
+
+    /**
+     * Constructor.
+     *
+     * @param mount the name of the mount - for logging and for saving the settings
+     * @param initial the settings to start with - clamped to the allowed range
+     * @param maxConcurrency the upper limit of reads in flight, usually the number of hashing threads
+     * @param adaptive tune the settings? Otherwise they stay as given.
+     * @param cpuCap the fraction of all cores the reading threads may use
+     */
+    public IoTuner(String mount, IoSettings initial, int maxConcurrency, boolean adaptive, double cpuCap) {
+        this.mount = mount;
+        this.adaptive = adaptive;
+        this.maxConcurrency = maxConcurrency;
+        this.cpuCap = cpuCap;
+        this.concurrency = Math.max(1, Math.min(initial.getConcurrency(), maxConcurrency));
+        this.bufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(initial.getBufferSize(), MAX_BUFFER_SIZE));
+    }
+
+    /**
+     * The reading of one file. Accounts the read bytes and the CPU time of the reading thread.
+     */
+    class Reading implements Closeable {
+        private long cpuMark = adaptive ? threadCpuTime() : 0L;
+        private long sinceMark = 0L;
+
+        private Reading() {
+        }
+
+        /**
+         * @param bytes the number of bytes just read
+         */
+        public void transferred(long bytes) {
+            if (!adaptive) {
+                return;
+            }
+            sinceMark += bytes;
+            if (sinceMark >= CPU_SAMPLE_BYTES) {
+                sample(sinceMark);
+            }
+        }
+
+        /**
+         * The file was read - lets the next one be read.
+         */
+        @Override
+        public void close() {
+            if (adaptive) {
+                sample(sinceMark);
+            }
+            release();
+        }
+
+        private void sample(long bytes) {
+            long now = threadCpuTime();
+            account(bytes, now - cpuMark);
+            cpuMark = now;
+            sinceMark = 0L;
+        }
+    }
+
+    /**
+     * Waits until another file of the mount may be read.
+     *
+     * @return the reading - must be closed once the file was read
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public Reading read() throws InterruptedIOException {
+        acquire();
+        return new Reading();
+    }
+
+    private synchronized void acquire() throws InterruptedIOException {
+        try {
+            while (inFlight >= concurrency) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to read from " + mount);
+        }
+        inFlight++;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Accounts read bytes and the CPU time used for them. Evaluates the current window once it is over.
+     */
+    private synchronized void account(long bytes, long cpuNanos) {
+        windowBytes += bytes;
+        windowCpu += cpuNanos;
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            evaluate(now);
+        }
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds - 0 if the JVM does not measure it
+     */
+    private static long threadCpuTime() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : 0L;
+    }
+
+    public String getMount() {
+        return mount;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the current settings
+     */
+    public IoSettings getSettings() {
+        return new IoSettings(concurrency, bufferSize);
+    }
+
+    private void evaluate(long now) {
+        double seconds = (now - windowStart) / (double) TimeUnit.SECONDS.toNanos(1L);
+        double rate = windowBytes / seconds;
+        double cpu = windowCpu / (double) TimeUnit.SECONDS.toNanos(1L) / seconds / cores;
+        windowStart = now;
+        windowBytes = 0L;
+        windowCpu = 0L;
+
+        if (cpu > cpuCap && concurrency > 1) {
+            setConcurrency(Math.max(1, concurrency / 2));
+            probing = false;
+            if (logger.isLoggable(Level.FINE)) logger.fine(String.format("%s: CPU cap exceeded - %s", mount, getSettings()));
+            return;
+        }
+
+        if (probing) {
+            if (rate < baseline * (1.0d + MIN_GAIN)) {
+                if (probeBuffer) {
+                    bufferSize = previousBufferSize;
+                    bufferUp = !bufferUp;
+                } else {
+                    setConcurrency(previousConcurrency);
+                    concurrencyStep = -concurrencyStep;
+                }
+            }
+            probing = false;
+            probeBuffer = !probeBuffer;
+            if (logger.isLoggable(Level.FINE)) logger.fine(String.format("%s: %.1f MiB/s - %s", mount, rate / Stats.MI, getSettings()));
+            return;
+        }
+
+        baseline = rate;
+        lastCpu = cpu;
+        probe();
+    }
+
+    private void probe() {
+        previousConcurrency = concurrency;
+        previousBufferSize = bufferSize;
+        if (!probeBuffer && maxConcurrency > 1) {
+            int next = concurrency + concurrencyStep;
+            if (next < 1 || next > maxConcurrency) {
+                concurrencyStep = -concurrencyStep;
+                next = concurrency + concurrencyStep;
+            }
+            // Another reader would push us over the CPU cap
+            boolean overCap = next > concurrency && lastCpu * next / concurrency > cpuCap;
+            if (!overCap) {
+                setConcurrency(next);
+                probing = true;
+                return;
+            }
+        }
+
+        probeBuffer = true;
+        long next = bufferUp ? bufferSize * 2L : bufferSize / 2L;
+        if (next < MIN_BUFFER_SIZE || next > MAX_BUFFER_SIZE) {
+            bufferUp = !bufferUp;
+            next = bufferUp ? bufferSize * 2L : bufferSize / 2L;
+        }
+        bufferSize = (int) next;
+        probing = true;
+    }
+
+    private void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        notifyAll();
+    }
+}
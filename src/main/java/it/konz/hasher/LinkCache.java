@@ -0,0 +1,186 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Remembers the hashes of files with several hard links during a scan, so every inode is read only once.
+ *
+ * The hashes of the most recently hashed files are kept without asking for their link count, which would cost another
+ * stat per file. Only when a second link of an inode turns up is the link count looked up, and the inode is then kept
+ * until all its other links were seen. Links outside the scanned tree are never seen, so both are additionally
+ * limited to a number of entries and evict the least recently used ones.
+ */
+class LinkCache {
+
+    private final Map<Key, byte[]> recent;
+    private final Map<Key, Value> links;
+
+    /**
+     * Identifies the content of an inode as far as the file system tells.
+     */
+    private static class Key {
+        private final Object fileKey;
+        private final long size;
+        private final FileTime time;
+        private final String algorithm;
+
+        private Key(Object fileKey, long size, FileTime time, String algorithm) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.time = time;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            final Key key = (Key) o;
+
+            if (size != key.size) return false;
+            if (!fileKey.equals(key.fileKey)) return false;
+            if (!time.equals(key.time)) return false;
+            if (!algorithm.equals(key.algorithm)) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = fileKey.hashCode();
+            result = 31 * result + (int) (size ^ (size >>> 32));
+            result = 31 * result + time.hashCode();
+            result = 31 * result + algorithm.hashCode();
+            return result;
+        }
+    }
+
+    private static class Value {
+        private final byte[] hash;
+        private long linksLeft;
+
+        private Value(byte[] hash, long linksLeft) {
+            this.hash = hash;
+            this.linksLeft = linksLeft;
+        }
+    }
+
+    /**
+     * Drops the least recently used inode once the capacity is exceeded.
+     */
+    private static class LruMap<V> extends LinkedHashMap<Key, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of recently hashed files and of hard linked inodes to remember
+     */
+    public LinkCache(final int capacity) {
+        this.recent = new LruMap<>(capacity);
+        this.links = new LruMap<>(capacity);
+    }
+
+    /**
+     * Looks up the hash of another link of the same inode.
+     *
+     * @param file the file - its link count is looked up when the inode is seen for the second time
+     * @param fileKey the file key of the file
+     * @param size the file size
+     * @param time the modification time
+     * @param algorithm the hashing algorithm
+     * @return the hash, if known
+     */
+    public Optional<byte[]> get(Path file, Object fileKey, long size, FileTime time, String algorithm) {
+        Key key = new Key(fileKey, size, time, algorithm);
+        byte[] hash;
+        synchronized (this) {
+            Value value = links.get(key);
+            if (value != null) {
+                if (--value.linksLeft <= 0L) {
+                    links.remove(key);
+                }
+                return Optional.of(value.hash);
+            }
+            hash = recent.remove(key);
+            if (hash == null) {
+                return Optional.empty();
+            }
+        }
+
+        // The first and this link are seen - keep the hash for the others, if any
+        long otherLinks = linkCount(file) - 2L;
+        if (otherLinks > 0L) {
+            synchronized (this) {
+                links.put(key, new Value(hash, otherLinks));
+            }
+        }
+        return Optional.of(hash);
+    }
+
+    /**
+     * Remembers the hash of a file that was read, in case another link of its inode turns up.
+     *
+     * @param fileKey the file key of the file
+     * @param size the file size
+     * @param time the modification time
+     * @param algorithm the hashing algorithm
+     * @param hash the hash
+     */
+    public synchronized void put(Object fileKey, long size, FileTime time, String algorithm, byte[] hash) {
+        recent.put(new Key(fileKey, size, time, algorithm), hash);
+    }
+
+    /**
+     * @param file the file
+     * @return the number of hard links of the file - {@link Long#MAX_VALUE} if the file system does not tell
+     */
+    private static long linkCount(Path file) {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).longValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Long.MAX_VALUE;
+        } catch (IOException e) {
+            return 1L;
+        }
+    }
+}
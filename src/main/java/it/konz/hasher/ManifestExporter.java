@@ -0,0 +1,182 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Writes an md5sum / sha256sum manifest of a directory tree from its hashes files, without reading the hashed files.
+ *
+ * The directories are listed in sorted order on the calling thread. Their hashes files are parsed on worker threads
+ * while the calling thread writes the finished ones in listing order, so the manifest is the same on every run.
+ */
+class ManifestExporter {
+
+    private static final Logger logger = Logger.getLogger(ManifestExporter.class.getName());
+
+    private final Path root;
+    private final String hashFileName;
+    private final String algorithm;
+    private final int threads;
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long exported = 0L;
+
+    /**
+     * Constructor.
+     *
+     * @param root the directory the paths in the manifest are relative to
+     * @param hashFileName the hashes file name
+     * @param algorithm only hashes of this algorithm are exported - a manifest holds just one kind
+     * @param threads how many hashes files to parse at the same time
+     */
+    public ManifestExporter(Path root, String hashFileName, String algorithm, int threads) {
+        this.root = root;
+        this.hashFileName = hashFileName;
+        this.algorithm = algorithm;
+        this.threads = threads;
+    }
+
+    /**
+     * Exports the hashes of the tree.
+     *
+     * @param manifest the manifest file - replaced if it exists
+     * @return the stats - no files are hashed, so only the errors are counted
+     * @throws IOException if the manifest cannot be written
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public Stats exportManifest(Path manifest) throws IOException, InterruptedException {
+        Instant startTime = Instant.now();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Parsed directories waiting to be written, in listing order
+        Deque<Future<List<String>>> ahead = new ArrayDeque<>();
+
+        try (BufferedWriter out = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            Deque<Path> dirs = new ArrayDeque<>();
+            dirs.push(root);
+            while (!dirs.isEmpty()) {
+                Path dir = dirs.pop();
+                ahead.add(executor.submit(() -> lines(dir)));
+                if (ahead.size() >= threads * 4) {
+                    write(out, ahead.poll());
+                }
+
+                List<Path> subDirs = subDirectories(dir);
+                for (int i = subDirs.size() - 1; i >= 0; i--) {
+                    dirs.push(subDirs.get(i));
+                }
+            }
+            while (!ahead.isEmpty()) {
+                write(out, ahead.poll());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info(String.format("Exported %d hashes to %s.", exported, manifest));
+        if (skipped.get() != 0L) {
+            logger.warning(String.format("Skipped %d hashes not computed with %s.", skipped.get(), algorithm));
+        }
+        return new Stats(Duration.between(startTime, Instant.now()), 0L, 0L, 0L, errors.get());
+    }
+
+    private void write(BufferedWriter out, Future<List<String>> future) throws IOException, InterruptedException {
+        try {
+            for (String line : future.get()) {
+                out.write(line);
+                out.newLine();
+                exported++;
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private List<Path> subDirectories(Path dir) {
+        List<Path> subDirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+                path -> Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))) {
+            for (Path subDir : stream) {
+                subDirs.add(subDir);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not list directory " + dir + ": " + e);
+            errors.incrementAndGet();
+        }
+        Collections.sort(subDirs);
+        return subDirs;
+    }
+
+    /**
+     * @return the manifest lines of a directory, sorted by file name
+     */
+    private List<String> lines(Path dir) {
+        Path hashFile = dir.resolve(hashFileName);
+        if (!Files.exists(hashFile)) {
+            return Collections.emptyList();
+        }
+
+        Map<String, HashEntry> hashEntries = new TreeMap<>();
+        try {
+            errors.addAndGet(HashEntry.parseHashesFile(hashFile, hashEntries));
+        } catch (IOException e) {
+            logger.warning("Could not read hash file: " + hashFile + ": " + e);
+            errors.incrementAndGet();
+            return Collections.emptyList();
+        }
+
+        String prefix = root.relativize(dir).toString().replace(dir.getFileSystem().getSeparator(), "/");
+        if (!prefix.isEmpty()) {
+            prefix += "/";
+        }
+        List<String> lines = new ArrayList<>(hashEntries.size());
+        for (HashEntry entry : hashEntries.values()) {
+            if (entry.isDirectoryDigest()) {
+                continue;
+            }
+            if (entry.getAlgorithm().equals(algorithm)) {
+                lines.add(Manifests.format(prefix + entry.getName(), entry.getHash()));
+            } else {
+                skipped.incrementAndGet();
+            }
+        }
+        return lines;
+    }
+}
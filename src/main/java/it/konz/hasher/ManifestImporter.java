@@ -0,0 +1,264 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates hashes files from an md5sum / sha256sum manifest without reading the hashed files.
+ *
+ * Only the size and modification time of every listed file are read, the hash is taken from the manifest. Lines are
+ * grouped by directory and every group is merged into the hashes file of its directory on a worker thread. Manifests
+ * are usually sorted, so most directories form a single group. Should a directory come up again later, its groups are
+ * merged one after the other.
+ *
+ * The importer computes no directory digests. It drops the digest of every directory it changes and of the parents
+ * covering it, so {@code --compare} does not skip the changed subtree.
+ */
+class ManifestImporter {
+
+    private static final Logger logger = Logger.getLogger(ManifestImporter.class.getName());
+
+    /**
+     * Directories sharing a lock are merged one after the other.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path root;
+    private final String hashFileName;
+    private final Durability durability;
+    private final int threads;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Set<Path> changedDirs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor.
+     *
+     * @param root the directory the paths in the manifest are relative to
+     * @param hashFileName the hashes file name
+     * @param durability whether to fsync the written hashes files
+     * @param threads how many directories to merge at the same time
+     */
+    public ManifestImporter(Path root, String hashFileName, Durability durability, int threads) {
+        this.root = root.normalize();
+        this.hashFileName = hashFileName;
+        this.durability = durability;
+        this.threads = threads;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Imports a manifest.
+     *
+     * @param manifest the manifest file
+     * @return the stats - no files are hashed, so only the errors are counted
+     * @throws IOException if the manifest cannot be read
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public Stats importManifest(Path manifest) throws IOException, InterruptedException {
+        Instant startTime = Instant.now();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Bounds the groups held in memory while the workers are busy
+        Semaphore inFlight = new Semaphore(threads * 2);
+
+        try (BufferedReader br = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            Path currentDir = null;
+            List<Manifests.Line> group = new ArrayList<>();
+            String line;
+            long lineNumber = 0L;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Manifests.Line parsed;
+                Path file;
+                try {
+                    parsed = Manifests.parse(line);
+                    file = resolve(parsed.getPath());
+                } catch (IllegalArgumentException e) {
+                    logger.warning(String.format("%s:%d: %s", manifest, lineNumber, e.getMessage()));
+                    errors.incrementAndGet();
+                    continue;
+                }
+
+                Path dir = file.getParent();
+                if (!dir.equals(currentDir)) {
+                    submit(executor, inFlight, currentDir, group);
+                    currentDir = dir;
+                    group = new ArrayList<>();
+                }
+                group.add(parsed);
+            }
+            submit(executor, inFlight, currentDir, group);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        dropParentDigests();
+
+        logger.info(String.format("Imported %d hashes from %s.", imported.get(), manifest));
+        return new Stats(Duration.between(startTime, Instant.now()), 0L, 0L, 0L, errors.get());
+    }
+
+    private Path resolve(String relativePath) {
+        Path file = root.resolve(relativePath).normalize();
+        if (!file.startsWith(root) || file.equals(root)) {
+            throw new IllegalArgumentException(String.format("%s is not below %s", relativePath, root));
+        }
+        return file;
+    }
+
+    private void submit(ExecutorService executor, Semaphore inFlight, Path dir, List<Manifests.Line> group)
+            throws InterruptedException {
+        if (group.isEmpty()) {
+            return;
+        }
+        inFlight.acquire();
+        executor.execute(() -> {
+            try {
+                synchronized (locks[(dir.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES]) {
+                    merge(dir, group);
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Drops the digests of the parents of the changed directories. A parent without a digest ends the way up, as the
+     * ones above cannot have one either.
+     */
+    private void dropParentDigests() {
+        Set<Path> visited = new HashSet<>(changedDirs);
+        for (Path dir : changedDirs) {
+            for (Path parent = dir.getParent(); parent != null && visited.add(parent); parent = parent.getParent()) {
+                try {
+                    if (!HashesWriter.dropDigest(parent, hashFileName, durability != Durability.NONE)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    logger.warning("Could not drop digest of " + parent + ": " + e);
+                    errors.incrementAndGet();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the entries of a group to the hashes file of its directory. Existing entries of other files are kept.
+     */
+    private void merge(Path dir, List<Manifests.Line> group) {
+        Path hashFile = dir.resolve(hashFileName);
+        Map<String, HashEntry> hashEntries = new HashMap<>();
+        try {
+            if (Files.exists(hashFile)) {
+                errors.addAndGet(HashEntry.parseHashesFile(hashFile, hashEntries));
+            }
+        } catch (IOException e) {
+            // Writing would lose the entries we could not read
+            logger.warning("Could not read hash file: " + hashFile + ": " + e);
+            errors.addAndGet(group.size());
+            return;
+        }
+        for (HashEntry entry : hashEntries.values()) {
+            entry.setStillExists();
+        }
+
+        long added = 0L;
+        for (Manifests.Line line : group) {
+            Path file = root.resolve(line.getPath()).normalize();
+            String name = file.getFileName().toString();
+            if (name.equals(hashFileName)) {
+                continue;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isRegularFile()) {
+                    logger.warning("Not a regular file: " + file);
+                    errors.incrementAndGet();
+                    continue;
+                }
+                hashEntries.put(name, new HashEntry(name, attrs.lastModifiedTime(), attrs.size(), line.getAlgorithm(),
+                        line.getHash()));
+                added++;
+                if (logger.isLoggable(Level.FINE)) logger.fine("Imported: " + file);
+            } catch (NoSuchFileException e) {
+                logger.warning("File listed in manifest does not exist: " + file);
+                errors.incrementAndGet();
+            } catch (IOException e) {
+                logger.warning("Could not read attributes of " + file + ": " + e);
+                errors.incrementAndGet();
+            }
+        }
+        if (added == 0L) {
+            return;
+        }
+        // It no longer matches the entries
+        hashEntries.remove(HashEntry.DIRECTORY_DIGEST);
+
+        Path tempFile = hashFile.resolveSibling(hashFileName + HashesWriter.TEMP_SUFFIX);
+        try {
+            HashesWriter.writeSorted(tempFile, new ArrayList<>(hashEntries.values()), durability != Durability.NONE);
+            HashesWriter.moveIntoPlace(tempFile, hashFile);
+            if (durability != Durability.NONE) {
+                HashesWriter.syncDirectory(dir);
+            }
+            imported.addAndGet(added);
+            changedDirs.add(dir);
+        } catch (IOException e) {
+            logger.warning("Could not write hash file: " + hashFile + ": " + e);
+            errors.incrementAndGet();
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException ignored) {
+                // We already reported the original error
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+/**
+ * The format of md5sum / sha1sum / sha256sum manifests.
+ *
+ * A line is either '&lt;hex&gt;  &lt;path&gt;' (GNU style, '*' instead of the second blank for binary mode) or
+ * '&lt;ALGO&gt; (&lt;path&gt;) = &lt;hex&gt;' (BSD style). Paths containing a backslash or a newline are escaped and
+ * the line is prefixed with a backslash.
+ */
+final class Manifests {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * A parsed manifest line.
+     */
+    static class Line {
+        private final String path;
+        private final String algorithm;
+        private final byte[] hash;
+
+        private Line(String path, String algorithm, byte[] hash) {
+            this.path = path;
+            this.algorithm = algorithm;
+            this.hash = hash;
+        }
+
+        /**
+         * @return the path relative to the manifest root, with '/' as separator
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the algorithm - derived from the hash length for GNU style lines
+         */
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+
+    private Manifests() {
+    }
+
+    /**
+     * Parses a manifest line.
+     *
+     * @param line the line
+     * @return the parsed line
+     * @throws IllegalArgumentException if the line has an unknown format
+     */
+    static Line parse(String line) {
+        boolean escaped = line.startsWith("\\");
+        if (escaped) {
+            line = line.substring(1);
+        }
+
+        int bsdSeparator = line.lastIndexOf(") = ");
+        int bsdStart = line.indexOf(" (");
+        if (bsdSeparator > 0 && bsdStart > 0 && bsdStart < bsdSeparator && isHex(line.substring(bsdSeparator + 4))) {
+            byte[] hash = fromHex(line.substring(bsdSeparator + 4));
+            String path = line.substring(bsdStart + 2, bsdSeparator);
+            return new Line(escaped ? unescape(path) : path, algorithmName(line.substring(0, bsdStart)), hash);
+        }
+
+        int blank = line.indexOf(' ');
+        if (blank <= 0 || line.length() < blank + 3 || (line.charAt(blank + 1) != ' ' && line.charAt(blank + 1) != '*')) {
+            throw new IllegalArgumentException(String.format("Incorrect manifest line: %s", line));
+        }
+        byte[] hash = fromHex(line.substring(0, blank));
+        String path = line.substring(blank + 2);
+        return new Line(escaped ? unescape(path) : path, algorithmForLength(hash.length), hash);
+    }
+
+    /**
+     * Formats a GNU style manifest line.
+     *
+     * @param path the path relative to the manifest root
+     * @param hash the hash
+     * @return the line
+     */
+    static String format(String path, byte[] hash) {
+        if (path.indexOf('\\') >= 0 || path.indexOf('\n') >= 0) {
+            return "\\" + toHex(hash) + "  " + path.replace("\\", "\\\\").replace("\n", "\\n");
+        }
+        return toHex(hash) + "  " + path;
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static byte[] fromHex(String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0 || !isHex(hex)) {
+            throw new IllegalArgumentException(String.format("Not a hex encoded hash: %s", hex));
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return !s.isEmpty();
+    }
+
+    private static String unescape(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                char next = path.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param length the length of a hash in bytes
+     * @return the JCA name of the algorithm that produces such hashes
+     */
+    static String algorithmForLength(int length) {
+        switch (length) {
+            case 16:
+                return "MD5";
+            case 20:
+                return "SHA-1";
+            case 28:
+                return "SHA-224";
+            case 32:
+                return "SHA-256";
+            case 48:
+                return "SHA-384";
+            case 64:
+                return "SHA-512";
+            default:
+                throw new IllegalArgumentException(String.format("Unknown hash length: %d bytes", length));
+        }
+    }
+
+    /**
+     * @param tag the algorithm of a BSD style line, e.g. 'SHA256'
+     * @return the JCA name of the algorithm, e.g. 'SHA-256'
+     */
+    private static String algorithmName(String tag) {
+        if (tag.startsWith("SHA") && !tag.startsWith("SHA-") && tag.length() > 3) {
+            return "SHA-" + tag.substring(3);
+        }
+        return tag;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The settings of a scan, independent of the command line.
+ *
+ * The defaults match the defaults of the command line.
+ */
+public class ScanConfig implements Cloneable {
+
+    private boolean update = false;
+    private boolean verify = false;
+    private String algorithm = "MD5";
+    private String hashFile = ".hashes";
+    private Durability durability = Durability.BATCH;
+    private HashStorage storage = HashStorage.FILE;
+    private int writeQueue = 64;
+    private double journalRatio = 0.5d;
+    private boolean streaming = false;
+    private long memoryBudget = 256L * Stats.MI;
+    private int parallelRoots = 1;
+    private int linkCache = 100000;
+    private Path reference = null;
+    private double referenceSample = 0.0d;
+    private List<String> excludes = new ArrayList<>();
+    private List<String> excludeRegexes = new ArrayList<>();
+    private List<String> includes = new ArrayList<>();
+    private long minSize = 0L;
+    private long maxSize = Long.MAX_VALUE;
+    private int manifestThreads = Runtime.getRuntime().availableProcessors();
+    private int threads = 1;
+    private int bufferSize = HashVisitor.BLOCK_SIZE;
+    private boolean adaptive = false;
+    private double cpuCap = 1.0d;
+    private Path tuningFile = null;
+    private boolean virtualThreads = false;
+    private int maxOutstandingIo = 256;
+    private Path contentCache = null;
+    private long contentCacheSize = 64L * Stats.MI;
+    private int prefetch = 0;
+
+    public boolean isUpdate() {
+        return update;
+    }
+
+    public void setUpdate(boolean update) {
+        this.update = update;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getHashFile() {
+        return hashFile;
+    }
+
+    public void setHashFile(String hashFile) {
+        this.hashFile = hashFile;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public HashStorage getStorage() {
+        return storage;
+    }
+
+    public void setStorage(HashStorage storage) {
+        this.storage = storage;
+    }
+
+    public int getWriteQueue() {
+        return writeQueue;
+    }
+
+    public void setWriteQueue(int writeQueue) {
+        this.writeQueue = writeQueue;
+    }
+
+    public double getJournalRatio() {
+        return journalRatio;
+    }
+
+    public void setJournalRatio(double journalRatio) {
+        this.journalRatio = journalRatio;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget the memory budget in bytes
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public int getParallelRoots() {
+        return parallelRoots;
+    }
+
+    public void setParallelRoots(int parallelRoots) {
+        this.parallelRoots = parallelRoots;
+    }
+
+    public int getLinkCache() {
+        return linkCache;
+    }
+
+    /**
+     * @param linkCache how many recently hashed files and hard linked inodes to remember during a scan - 0 disables the link cache
+     */
+    public void setLinkCache(int linkCache) {
+        this.linkCache = linkCache;
+    }
+
+    public Path getReference() {
+        return reference;
+    }
+
+    /**
+     * @param reference a copy of the scanned trees to take hashes from - null for none
+     */
+    public void setReference(Path reference) {
+        this.reference = reference;
+    }
+
+    public double getReferenceSample() {
+        return referenceSample;
+    }
+
+    /**
+     * @param referenceSample the fraction of the files taken from the reference that are hashed anyway
+     */
+    public void setReferenceSample(double referenceSample) {
+        this.referenceSample = referenceSample;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * @param excludes glob patterns of files and directories to skip
+     */
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+
+    public List<String> getExcludeRegexes() {
+        return excludeRegexes;
+    }
+
+    /**
+     * @param excludeRegexes regular expressions of files and directories to skip
+     */
+    public void setExcludeRegexes(List<String> excludeRegexes) {
+        this.excludeRegexes = excludeRegexes;
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @param includes glob patterns of the files to hash - all files if empty
+     */
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * @param minSize files smaller than this are skipped
+     */
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize files larger than this are skipped
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getManifestThreads() {
+        return manifestThreads;
+    }
+
+    /**
+     * @param manifestThreads how many directories to process at the same time when importing or exporting a manifest
+     */
+    public void setManifestThreads(int manifestThreads) {
+        this.manifestThreads = manifestThreads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads how many files to hash at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return the read buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the read buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @param adaptive tune the reads in flight and the buffer size per mount while scanning
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public double getCpuCap() {
+        return cpuCap;
+    }
+
+    /**
+     * @param cpuCap the fraction of all cores hashing may use when tuning is adaptive
+     */
+    public void setCpuCap(double cpuCap) {
+        this.cpuCap = cpuCap;
+    }
+
+    public Path getTuningFile() {
+        return tuningFile;
+    }
+
+    /**
+     * @param tuningFile where adaptive tuning keeps its results per mount - null for none
+     */
+    public void setTuningFile(Path tuningFile) {
+        this.tuningFile = tuningFile;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads list, stat and hash on virtual threads - needs Java 21
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxOutstandingIo() {
+        return maxOutstandingIo;
+    }
+
+    /**
+     * @param maxOutstandingIo how many I/O operations may be in flight at the same time with virtual threads
+     */
+    public void setMaxOutstandingIo(int maxOutstandingIo) {
+        this.maxOutstandingIo = maxOutstandingIo;
+    }
+
+    public Path getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * @param contentCache the persistent cache of hashes by inode, size and modification time - null for none
+     */
+    public void setContentCache(Path contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    /**
+     * @param contentCacheSize the size of the content cache file in bytes
+     */
+    public void setContentCacheSize(long contentCacheSize) {
+        this.contentCacheSize = contentCacheSize;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @param prefetch how many directories ahead of the walk to read the hashes files of - 0 for none
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Compiles the filter settings.
+     *
+     * @return the filter
+     * @throws java.util.regex.PatternSyntaxException if a pattern is invalid
+     */
+    public ScanFilter createFilter() {
+        if (excludes.isEmpty() && excludeRegexes.isEmpty() && includes.isEmpty() && minSize <= 0L && maxSize == Long.MAX_VALUE) {
+            return ScanFilter.NONE;
+        }
+        return new ScanFilter(excludes, excludeRegexes, includes, minSize, maxSize);
+    }
+
+    /**
+     * Creates a new scanner with these settings.
+     *
+     * @return the scanner
+     * @throws NoSuchAlgorithmException If the hashing algorithm is not available.
+     */
+    Scanner createScanner() throws NoSuchAlgorithmException {
+        BitSet mode = new BitSet();
+        mode.set(Scanner.MODE_UPDATE, update);
+        mode.set(Scanner.MODE_VERIFY, verify);
+
+        Scanner scanner = new Scanner(mode, algorithm, hashFile);
+        scanner.setDurability(durability);
+        scanner.setStorage(storage);
+        scanner.setWriteQueueSize(writeQueue);
+        scanner.setJournalRatio(journalRatio);
+        scanner.setStreaming(streaming);
+        scanner.setMemoryBudget(memoryBudget);
+        scanner.setLinkCacheSize(linkCache);
+        scanner.setReference(reference);
+        scanner.setReferenceSample(referenceSample);
+        scanner.setFilter(createFilter());
+        scanner.setThreads(threads);
+        scanner.setBufferSize(bufferSize);
+        scanner.setAdaptive(adaptive);
+        scanner.setCpuCap(cpuCap);
+        scanner.setTuningFile(tuningFile);
+        scanner.setVirtualThreads(virtualThreads);
+        scanner.setMaxOutstandingIo(maxOutstandingIo);
+        scanner.setContentCacheFile(contentCache);
+        scanner.setContentCacheSize(contentCacheSize);
+        scanner.setPrefetch(prefetch);
+        return scanner;
+    }
+
+    @Override
+    public ScanConfig clone() {
+        try {
+            ScanConfig clone = (ScanConfig) super.clone();
+            clone.excludes = new ArrayList<>(excludes);
+            clone.excludeRegexes = new ArrayList<>(excludeRegexes);
+            clone.includes = new ArrayList<>(includes);
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            // Cannot happen - we implement Cloneable.
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+/**
+ * A scan could not be started or was aborted.
+ */
+public class ScanException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    /**
+     * Constructor.
+     *
+     * @param status the exit status the command line tool uses for this problem - see the constants in {@link Hasher}
+     * @param message the message
+     */
+    public ScanException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param status the exit status the command line tool uses for this problem - see the constants in {@link Hasher}
+     * @param message the message
+     * @param cause the cause
+     */
+    public ScanException(int status, String message, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
+
+    /**
+     * @return the exit status
+     */
+    public int getStatus() {
+        return status;
+    }
+}
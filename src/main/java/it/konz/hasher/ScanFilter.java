@@ -0,0 +1,116 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files are hashed and which directories are entered.
+ *
+ * Every pattern is matched against the file name as well as against the path relative to the scanned directory, so
+ * 'node_modules' excludes such directories anywhere while 'build/cache' excludes just that one. The patterns are
+ * compiled once when the filter is created.
+ */
+public class ScanFilter {
+
+    /**
+     * A filter that lets everything pass.
+     */
+    public static final ScanFilter NONE = new ScanFilter(Collections.emptyList(), Collections.emptyList(),
+            Collections.emptyList(), 0L, Long.MAX_VALUE);
+
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final long minSize;
+    private final long maxSize;
+
+    /**
+     * Constructor.
+     *
+     * @param excludeGlobs glob patterns of files and directories to skip
+     * @param excludeRegexes regular expressions of files and directories to skip
+     * @param includeGlobs glob patterns of the files to hash - all files if empty. Directories are always entered.
+     * @param minSize files smaller than this are skipped
+     * @param maxSize files larger than this are skipped
+     * @throws java.util.regex.PatternSyntaxException if a pattern is invalid
+     */
+    public ScanFilter(List<String> excludeGlobs, List<String> excludeRegexes, List<String> includeGlobs,
+                      long minSize, long maxSize) {
+        FileSystem fileSystem = FileSystems.getDefault();
+        for (String glob : excludeGlobs) {
+            excludes.add(fileSystem.getPathMatcher("glob:" + glob));
+        }
+        for (String regex : excludeRegexes) {
+            Pattern pattern = Pattern.compile(regex);
+            excludes.add(path -> pattern.matcher(path.toString()).matches());
+        }
+        for (String glob : includeGlobs) {
+            includes.add(fileSystem.getPathMatcher("glob:" + glob));
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param root the scanned directory
+     * @param dir a directory below it
+     * @return Should the directory be skipped along with everything below it?
+     */
+    public boolean excludesDirectory(Path root, Path dir) {
+        return !dir.equals(root) && matchesAny(excludes, root, dir);
+    }
+
+    /**
+     * @param root the scanned directory
+     * @param file a regular file below it
+     * @param attrs the attributes of the file
+     * @return Should the file be skipped?
+     */
+    public boolean excludesFile(Path root, Path file, BasicFileAttributes attrs) {
+        if (attrs.size() < minSize || attrs.size() > maxSize) {
+            return true;
+        }
+        if (!includes.isEmpty() && !matchesAny(includes, root, file)) {
+            return true;
+        }
+        return matchesAny(excludes, root, file);
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path root, Path path) {
+        if (matchers.isEmpty()) {
+            return false;
+        }
+        Path name = path.getFileName();
+        Path relative = root.relativize(path);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(name) || matcher.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
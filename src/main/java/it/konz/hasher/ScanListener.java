@@ -0,0 +1,62 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Callbacks for the findings of a scan.
+ *
+ * When several directories are scanned or several files are hashed at the same time, the methods are called from
+ * several threads.
+ */
+public interface ScanListener {
+
+    /**
+     * A listener that ignores everything.
+     */
+    ScanListener NONE = new ScanListener() { };
+
+    /**
+     * The hash of an unmodified file does not match the hash in the hashes file.
+     *
+     * @param file the file
+     */
+    default void verificationFailed(Path file) {
+    }
+
+    /**
+     * A file could not be read.
+     *
+     * @param file the file
+     * @param e the cause
+     */
+    default void fileFailed(Path file, IOException e) {
+    }
+
+    /**
+     * A directory given to the scan is done.
+     *
+     * @param root the directory
+     * @param stats the stats of the directory
+     */
+    default void rootFinished(Path root, Stats stats) {
+    }
+}
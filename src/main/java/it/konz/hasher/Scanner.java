@@ -19,6 +19,7 @@
 package it.konz.hasher;
 
 import java.io.*;
+import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
@@ -47,7 +48,50 @@ public class Scanner {
 
     private final String hashFileName;
 
-    private final MessageDigest digest;
+
+    private Durability durability = Durability.BATCH;
+
+    private HashStorage storage = HashStorage.FILE;
+
+    private int writeQueueSize = 64;
+
+    private double journalRatio = 0.5d;
+
+    private boolean streaming = false;
+
+    private long memoryBudget = 256L * Stats.MI;
+
+    private ScanListener listener = ScanListener.NONE;
+
+    private int linkCacheSize = 100000;
+
+    private Path reference = null;
+
+    private double referenceSample = 0.0d;
+
+    private ScanFilter filter = ScanFilter.NONE;
+
+    private int threads = 1;
+
+    private int bufferSize = HashVisitor.BLOCK_SIZE;
+
+    private boolean adaptive = false;
+
+    private double cpuCap = 1.0d;
+
+    private Path tuningFile = null;
+
+    private boolean virtualThreads = false;
+
+    private int maxOutstandingIo = 256;
+
+    private Path contentCacheFile = null;
+
+    private long contentCacheSize = 64L * Stats.MI;
+
+    private int prefetch = 0;
+
+    private volatile boolean cancelled = false;
 
     /**
      * Constructor.
@@ -67,7 +111,8 @@ public class Scanner {
         this.update = mode.get(MODE_UPDATE);
         this.verify = mode.get(MODE_VERIFY);
         this.algorithm = algorithm;
-        digest = MessageDigest.getInstance(algorithm);
+        // Fail early - the visitor creates the digests per thread
+        MessageDigest.getInstance(algorithm);
         this.hashFileName = hashFileName;
     }
 
@@ -92,23 +137,115 @@ public class Scanner {
      * @return true if no errors occurred
      */
     public Stats scan(Path path) {
+        return scan(path, path, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Hashes part of a directory tree. Filters, the reference tree and directory digests still work relative to the
+     * whole tree. A directory whose subdirectories are beyond the depth limit gets no digest.
+     *
+     * @param root the root of the tree
+     * @param start the directory to start at - root or a directory below it
+     * @param maxDepth how many levels below start to enter - 1 hashes the files of start only
+     * @return the stats
+     */
+    Stats scan(Path root, Path start, int maxDepth) {
         Instant startTime = Instant.now();
-        HashVisitor visitor = new HashVisitor(this);
+        Map<String, IoSettings> ioSettings = loadIoSettings();
+        HashesWriter writer = new HashesWriter(hashFileName, durability, storage, writeQueueSize, journalRatio);
+        writer.setCancelled(this::isCancelled);
+        HashVisitor visitor = streaming ? new StreamingHashVisitor(this, writer, root, ioSettings, memoryBudget)
+                : new HashVisitor(this, writer, root, ioSettings);
+        ContentCache contentCache = openContentCache();
+        visitor.setContentCache(contentCache);
         try {
-            Files.walkFileTree(path, visitor);
+            try {
+                if (virtualThreads && !streaming && maxDepth == Integer.MAX_VALUE) {
+                    new ConcurrentWalker(visitor, maxOutstandingIo).walk(start);
+                } else {
+                    if (prefetch > 0 && !streaming && maxDepth == Integer.MAX_VALUE) {
+                        visitor.startPrefetch(start);
+                    }
+                    Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), maxDepth, visitor);
+                }
+            } finally {
+                try {
+                    visitor.awaitCompletion();
+                } finally {
+                    try {
+                        writer.close();
+                    } finally {
+                        if (contentCache != null) {
+                            contentCache.close();
+                        }
+                    }
+                }
+            }
         } catch (IOException e) {
             // Should never happen
             logger.severe(e.toString());
             throw new RuntimeException(e);
         }
+
+        ioSettings = visitor.getIoSettings();
+        if (tuningFile != null && !ioSettings.isEmpty()) {
+            try {
+                IoSettings.save(tuningFile, ioSettings);
+            } catch (IOException e) {
+                logger.warning("Could not save I/O settings to " + tuningFile + ": " + e);
+            }
+        }
         return new Stats(Duration.between(startTime, Instant.now()), visitor.getFileBytes(), visitor.getFileCount(),
-                visitor.getVerificationErrors(), visitor.getOtherErrors());
+                visitor.getVerificationErrors(), visitor.getOtherErrors() + writer.getErrors(),
+                visitor.getBytesDeduplicated(), ioSettings, visitor.getWorkerUtilisation());
+    }
+
+    /**
+     * @return the content cache - null if none is configured, it is not needed or it cannot be used
+     */
+    private ContentCache openContentCache() {
+        if (contentCacheFile == null || !update) {
+            return null;
+        }
+        try {
+            return ContentCache.open(contentCacheFile, contentCacheSize);
+        } catch (IOException e) {
+            logger.warning("Not using content cache " + contentCacheFile + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the I/O settings saved by earlier runs - empty if there are none
+     */
+    private Map<String, IoSettings> loadIoSettings() {
+        if (tuningFile == null || !adaptive || !Files.exists(tuningFile)) {
+            return Collections.emptyMap();
+        }
+        try {
+            return IoSettings.load(tuningFile);
+        } catch (IOException e) {
+            logger.warning("Could not load I/O settings from " + tuningFile + ": " + e);
+            return Collections.emptyMap();
+        }
     }
 
     public boolean isUpdate() {
         return update;
     }
 
+    /**
+     * Stops a running scan as soon as possible. No further hashes file is written - not even the ones already queued.
+     * May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     public boolean isVerify() {
         return verify;
     }
@@ -121,7 +258,288 @@ public class Scanner {
         return hashFileName;
     }
 
-    MessageDigest getDigest() {
-        return digest;
+    /**
+     * Is the file one of the files hasher maintains itself?
+     *
+     * @param fileName the file name
+     * @return true for the hashes file, its journal and its temporary file
+     */
+    public boolean isHashesFile(String fileName) {
+        return fileName.startsWith(hashFileName)
+                && (fileName.equals(hashFileName) || fileName.equals(hashFileName + HashesWriter.TEMP_SUFFIX)
+                    || fileName.equals(hashFileName + HashEntry.JOURNAL_SUFFIX));
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @param durability when to fsync the written hashes files
+     */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public HashStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @param storage where the hashes are kept
+     */
+    public void setStorage(HashStorage storage) {
+        this.storage = storage;
+    }
+
+    public int getWriteQueueSize() {
+        return writeQueueSize;
+    }
+
+    /**
+     * @param writeQueueSize how many finished directories may wait for the hashes writer
+     */
+    public void setWriteQueueSize(int writeQueueSize) {
+        if (writeQueueSize < 1) {
+            throw new IllegalArgumentException("The write queue size must be positive.");
+        }
+        this.writeQueueSize = writeQueueSize;
+    }
+
+    public double getJournalRatio() {
+        return journalRatio;
+    }
+
+    /**
+     * @param journalRatio how large the journal may grow relative to the hashes file before it is compacted - 0
+     *                     disables the journal
+     */
+    public void setJournalRatio(double journalRatio) {
+        if (journalRatio < 0.0d) {
+            throw new IllegalArgumentException("The journal ratio must not be negative.");
+        }
+        this.journalRatio = journalRatio;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param streaming merge-join the sorted listing with the sorted hashes file instead of loading it into memory
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget how many bytes the listings of the open directories may use together in streaming mode before they are sorted on disk
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 1L) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public ScanListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener gets the findings of the scan
+     */
+    public void setListener(ScanListener listener) {
+        this.listener = listener;
+    }
+
+    public int getLinkCacheSize() {
+        return linkCacheSize;
+    }
+
+    /**
+     * @param linkCacheSize how many recently hashed files and hard linked inodes to remember during a scan - 0 disables the link cache
+     */
+    public void setLinkCacheSize(int linkCacheSize) {
+        if (linkCacheSize < 0) {
+            throw new IllegalArgumentException("The link cache size must not be negative.");
+        }
+        this.linkCacheSize = linkCacheSize;
+    }
+
+    public Path getReference() {
+        return reference;
+    }
+
+    /**
+     * @param reference a copy of the scanned tree whose hashes are taken for files with the same size and modification
+     *                  time - null for none
+     */
+    public void setReference(Path reference) {
+        this.reference = reference;
+    }
+
+    public double getReferenceSample() {
+        return referenceSample;
+    }
+
+    /**
+     * @param referenceSample the fraction of the files taken from the reference tree that are hashed anyway to verify
+     *                        the reference
+     */
+    public void setReferenceSample(double referenceSample) {
+        if (referenceSample < 0.0d || referenceSample > 1.0d) {
+            throw new IllegalArgumentException("The reference sample must be between 0 and 1.");
+        }
+        this.referenceSample = referenceSample;
+    }
+
+    public ScanFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param filter decides which files are hashed and which directories are entered
+     */
+    public void setFilter(ScanFilter filter) {
+        this.filter = filter;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads how many files to hash at the same time - 1 hashes on the walking thread. Streaming mode always
+     *                hashes on the walking thread.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed.");
+        }
+        this.threads = threads;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the read buffer size in bytes - the starting point if tuning is adaptive
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < IoTuner.MIN_BUFFER_SIZE || bufferSize > IoTuner.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("The buffer size must be between 4 KiB and 4 MiB.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @param adaptive tune the reads in flight (up to the number of threads) and the buffer size per mount while
+     *                 scanning
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public double getCpuCap() {
+        return cpuCap;
+    }
+
+    /**
+     * @param cpuCap the fraction of all cores hashing may use when tuning is adaptive
+     */
+    public void setCpuCap(double cpuCap) {
+        if (cpuCap <= 0.0d || cpuCap > 1.0d) {
+            throw new IllegalArgumentException("The CPU cap must be above 0 and at most 1.");
+        }
+        this.cpuCap = cpuCap;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads list, stat and hash on virtual threads - needs Java 21. Streaming mode always walks on a
+     *                       single thread.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxOutstandingIo() {
+        return maxOutstandingIo;
+    }
+
+    /**
+     * @param maxOutstandingIo how many I/O operations may be in flight at the same time with virtual threads
+     */
+    public void setMaxOutstandingIo(int maxOutstandingIo) {
+        if (maxOutstandingIo < 1) {
+            throw new IllegalArgumentException("At least one I/O operation must be allowed.");
+        }
+        this.maxOutstandingIo = maxOutstandingIo;
+    }
+
+    public Path getTuningFile() {
+        return tuningFile;
+    }
+
+    /**
+     * @param tuningFile where adaptive tuning loads its starting point from and saves its results per mount - null for
+     *                   none
+     */
+    public void setTuningFile(Path tuningFile) {
+        this.tuningFile = tuningFile;
+    }
+
+    public Path getContentCacheFile() {
+        return contentCacheFile;
+    }
+
+    /**
+     * @param contentCacheFile the persistent cache of hashes by inode, size and modification time - null for none
+     */
+    public void setContentCacheFile(Path contentCacheFile) {
+        this.contentCacheFile = contentCacheFile;
+    }
+
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    /**
+     * @param contentCacheSize the size of the content cache file in bytes - an existing cache of another size is
+     *                         discarded
+     */
+    public void setContentCacheSize(long contentCacheSize) {
+        if (contentCacheSize < ContentCache.WAYS * ContentCache.SLOT_SIZE || contentCacheSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The content cache size must be between 1 KiB and 2 GiB.");
+        }
+        this.contentCacheSize = contentCacheSize;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @param prefetch how many directories ahead of the walk to read the hashes files and file attributes of - 0 for
+     *                 none. Not used in streaming mode and with virtual threads.
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("The number of prefetched directories must not be negative.");
+        }
+        this.prefetch = prefetch;
     }
 }
@@ -0,0 +1,402 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Splits directory trees into shards and lets {@link ShardWorker} processes scan them.
+ *
+ * Every directory above the shard depth is a shard of its own files, every directory at the shard depth a shard of its
+ * whole subtree. The shards are handed out through a {@link ShardSpool}. The coordinator starts the given number of
+ * local workers and restarts the ones that die; more workers may join from other hosts that see the spool. Shards
+ * whose worker stops sending heartbeats are handed out again.
+ *
+ * Once all shards are done, the stats of the workers are merged per tree. When updating, the coordinator finally
+ * computes the {@link DirectoryDigest}s of the directories above the shard depth from the hashes files the workers
+ * wrote, since no worker saw their subdirectories.
+ */
+public class ShardCoordinator {
+
+    /**
+     * How long to wait between looking at the spool.
+     */
+    public static final long POLL_MILLIS = 1000L;
+
+    private static final Logger logger = Logger.getLogger(ShardCoordinator.class.getName());
+
+    private final ShardSpool spool;
+    private final Path spoolDir;
+    private final List<String> arguments;
+    private final ScanConfig config;
+    private final int workers;
+    private final int shardDepth;
+    private final Duration timeout;
+    private final List<Process> processes = new ArrayList<>();
+    private int restarts = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param spoolDir the spool directory - created if it does not exist
+     * @param arguments the command line the workers scan with
+     * @param config the settings of the scan
+     * @param workers how many worker processes to start on this host
+     * @param shardDepth the depth of the directories whose subtrees are scanned as a whole
+     * @param timeout how long a worker may stay silent before its shard is handed out again
+     * @throws ScanException if the settings cannot be used
+     */
+    public ShardCoordinator(Path spoolDir, List<String> arguments, ScanConfig config, int workers, int shardDepth,
+                            Duration timeout) throws ScanException {
+        this.spoolDir = spoolDir;
+        this.spool = new ShardSpool(spoolDir);
+        this.arguments = arguments;
+        this.config = new HasherService(config).getConfig();
+        this.workers = workers;
+        this.shardDepth = shardDepth;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Scans the directories with the workers.
+     *
+     * @param roots the directories
+     * @return the merged stats per directory
+     * @throws ScanException if a directory does not exist, the directories overlap or the spool cannot be used
+     */
+    public Map<Path, Stats> run(List<Path> roots) throws ScanException {
+        Instant startTime = Instant.now();
+        Map<Path, List<Path>> shallowDirs = new LinkedHashMap<>();
+        int shards = 0;
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                throw new ScanException(Hasher.STATUS_MISSING_DIRECTORY, String.format("Directory %s does not exist!", root));
+            }
+        }
+        HasherService.checkDisjoint(roots);
+        try {
+            spool.create(arguments);
+            for (Path root : roots) {
+                Path absoluteRoot = root.toAbsolutePath();
+                shallowDirs.put(absoluteRoot, new ArrayList<>());
+                shards = plan(absoluteRoot, shallowDirs.get(absoluteRoot), shards);
+            }
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not set up spool: " + e, e);
+        }
+        logger.info(String.format("%d shards in %s, %d local workers", shards, spoolDir, workers));
+
+        try {
+            for (int i = 0; i < workers; i++) {
+                processes.add(startWorker());
+            }
+            awaitShards(shards);
+            spool.finish();
+            // One deadline for all of them, or hung workers would add up
+            long deadline = System.nanoTime() + timeout.toNanos();
+            for (Process process : processes) {
+                long left = deadline - System.nanoTime();
+                if (!process.waitFor(Math.max(0L, left), TimeUnit.NANOSECONDS)) {
+                    logger.warning("Worker did not exit in time - killing it.");
+                    process.destroyForcibly();
+                }
+            }
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Sharded scan aborted: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Interrupted while scanning.", e);
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+
+        try {
+            Set<Path> failedDirs = new HashSet<>();
+            Map<Path, Stats> stats = merge(shallowDirs.keySet(), failedDirs, Duration.between(startTime, Instant.now()));
+            if (config.isUpdate()) {
+                for (Map.Entry<Path, List<Path>> root : shallowDirs.entrySet()) {
+                    long errors = seal(root.getKey(), root.getValue(), failedDirs);
+                    Stats rootStats = stats.get(root.getKey());
+                    stats.put(root.getKey(), rootStats.add(new Stats(Duration.ZERO, 0L, 0L, 0L, errors)));
+                }
+            }
+            spool.clear();
+            // The caller knows the roots by the names it gave
+            Map<Path, Stats> byRoot = new LinkedHashMap<>();
+            for (Path root : roots) {
+                byRoot.put(root, stats.get(root.toAbsolutePath()));
+            }
+            return byRoot;
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not collect results: " + e, e);
+        }
+    }
+
+    /**
+     * Puts the shards of a tree into the spool.
+     *
+     * @param root the root of the tree
+     * @param shallowDirs collects the directories whose files only are a shard
+     * @param shards the number of shards so far
+     * @return the number of shards now
+     */
+    private int plan(Path root, List<Path> shallowDirs, int shards) throws IOException {
+        ScanFilter filter = config.createFilter();
+        int[] count = {shards};
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), shardDepth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (filter.excludesDirectory(root, dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                spool.add(new ShardSpool.Shard(String.format("%08d", count[0]++), root, dir, false));
+                shallowDirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // Directories at the maximum depth are visited like files
+                if (attrs.isDirectory() && !filter.excludesDirectory(root, file)) {
+                    spool.add(new ShardSpool.Shard(String.format("%08d", count[0]++), root, file, true));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // A worker will run into it as well and report it
+                logger.warning("Could not plan shards below " + file + ": " + exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Starts a worker process on this host, with the same Java and class path as this one.
+     */
+    private Process startWorker() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Hasher.class.getName(), "--worker", spoolDir.toAbsolutePath().toString());
+        builder.inheritIO();
+        return builder.start();
+    }
+
+    /**
+     * Waits until every shard is done or has failed too often. Meanwhile hands out shards of silent workers again and
+     * restarts local workers that died. Gives up once the local workers are gone for good and nobody else has claimed a
+     * shard for a whole timeout.
+     */
+    private void awaitShards(int shards) throws IOException, InterruptedException {
+        // Since when no worker has been seen working
+        Instant idleSince = null;
+        while (true) {
+            spool.touch();
+            for (ShardSpool.Shard failed : spool.releaseStale(timeout)) {
+                logger.severe(String.format("Giving up on shard %s (%s)", failed.getId(), failed.getDir()));
+            }
+
+            List<String> finished = new ArrayList<>(spool.list(ShardSpool.DONE));
+            for (String id : spool.list(ShardSpool.FAILED)) {
+                if (!finished.contains(id)) {
+                    finished.add(id);
+                }
+            }
+            if (finished.size() >= shards) {
+                return;
+            }
+
+            for (int i = 0; i < processes.size(); i++) {
+                Process process = processes.get(i);
+                if (!process.isAlive() && restarts < workers * ShardSpool.MAX_ATTEMPTS) {
+                    logger.warning("Worker exited with status " + process.exitValue() + " - starting another one.");
+                    processes.set(i, startWorker());
+                    restarts++;
+                }
+            }
+
+            if (processes.stream().anyMatch(Process::isAlive) || !spool.list(ShardSpool.CLAIMED).isEmpty()) {
+                idleSince = null;
+            } else if (idleSince == null) {
+                idleSince = Instant.now();
+            } else if (Duration.between(idleSince, Instant.now()).compareTo(timeout) > 0) {
+                if (workers > 0) {
+                    throw new IOException(String.format("All local workers are gone and no other worker has claimed"
+                            + " a shard for %s - %d of %d shards are left.", timeout, shards - finished.size(), shards));
+                }
+                // Remote workers may still come
+                logger.severe(String.format("No worker has claimed a shard for %s - %d of %d shards are left.",
+                        timeout, shards - finished.size(), shards));
+                idleSince = Instant.now();
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Sums up the stats of the finished shards per tree. Every shard that failed counts as an error.
+     *
+     * @param roots the roots of the trees
+     * @param failedDirs collects the directories of the failed shards
+     * @param wallClock the runtime of the whole scan
+     */
+    private Map<Path, Stats> merge(Iterable<Path> roots, Set<Path> failedDirs, Duration wallClock) throws IOException {
+        Map<Path, List<Stats>> shardStats = new HashMap<>();
+        for (Path root : roots) {
+            shardStats.put(root, new ArrayList<>());
+        }
+        List<String> done = spool.list(ShardSpool.DONE);
+        for (String id : done) {
+            ShardSpool.Shard shard = spool.read(ShardSpool.DONE, id);
+            shardStats.get(shard.getRoot()).add(shard.getStats());
+        }
+        for (String id : spool.list(ShardSpool.FAILED)) {
+            if (!done.contains(id)) {
+                ShardSpool.Shard shard = spool.read(ShardSpool.FAILED, id);
+                shardStats.get(shard.getRoot()).add(new Stats(Duration.ZERO, 0L, 0L, 0L, 1L));
+                failedDirs.add(shard.getDir());
+            }
+        }
+
+        Map<Path, Stats> stats = new LinkedHashMap<>();
+        for (Path root : roots) {
+            stats.put(root, Stats.aggregate(shardStats.get(root), wallClock));
+        }
+        return stats;
+    }
+
+    /**
+     * Computes the digests of the directories whose subdirectories were scanned by other workers, deepest first.
+     * Directories of failed shards and the directories above them get no digest.
+     *
+     * @param root the root of the tree
+     * @param shallowDirs the directories
+     * @param failedDirs the directories of the failed shards
+     * @return the number of errors
+     */
+    private long seal(Path root, List<Path> shallowDirs, Set<Path> failedDirs) throws IOException {
+        List<Path> dirs = new ArrayList<>(shallowDirs);
+        dirs.sort((a, b) -> Integer.compare(b.getNameCount(), a.getNameCount()));
+        ScanFilter filter = config.createFilter();
+        // The writer may not have written the digests of the deeper ones yet
+        Map<Path, HashEntry> sealed = new HashMap<>();
+        long errors = 0L;
+
+        HashesWriter writer = new HashesWriter(config.getHashFile(), config.getDurability(), config.getWriteQueue(),
+                config.getJournalRatio());
+        try {
+            for (Path dir : dirs) {
+                Map<String, HashEntry> entries = new HashMap<>();
+                Path hashFile = dir.resolve(config.getHashFile());
+                if (!Files.exists(hashFile)) {
+                    // The shard failed
+                    failedDirs.add(dir);
+                    continue;
+                }
+                errors += HashEntry.parseHashesFile(hashFile, entries);
+                DirectoryDigest digest = new DirectoryDigest(config.getAlgorithm());
+                if (failedDirs.contains(dir)) {
+                    digest.setIncomplete();
+                }
+                List<HashEntry> files = new ArrayList<>();
+                for (HashEntry entry : entries.values()) {
+                    if (!entry.isDirectoryDigest()) {
+                        entry.setStillExists();
+                        files.add(entry);
+                    }
+                }
+                Collections.sort(files);
+                files.forEach(digest::add);
+
+                try (DirectoryStream<Path> subDirs = Files.newDirectoryStream(dir,
+                        path -> Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))) {
+                    for (Path subDir : subDirs) {
+                        if (!filter.excludesDirectory(root, subDir)) {
+                            Optional<HashEntry> childDigest = failedDirs.contains(subDir) ? Optional.empty()
+                                    : sealed.containsKey(subDir) ? Optional.of(sealed.get(subDir)) : readDigest(subDir);
+                            digest.addChild(subDir.getFileName().toString(), childDigest);
+                        }
+                    }
+                }
+
+                Optional<HashEntry> newDigest = digest.finish();
+                if (newDigest.isPresent()) {
+                    sealed.put(dir, newDigest.get());
+                } else {
+                    // The directories above cannot have one either
+                    failedDirs.add(dir);
+                }
+                HashEntry recorded = entries.get(HashEntry.DIRECTORY_DIGEST);
+                if (newDigest.isPresent() && newDigest.get().equals(recorded)) {
+                    continue;
+                }
+                if (newDigest.isPresent()) {
+                    entries.put(HashEntry.DIRECTORY_DIGEST, newDigest.get());
+                } else if (recorded == null) {
+                    continue;
+                }
+                // Without a new digest the recorded one is dropped, as it was never marked as still existing
+                writer.submit(dir, entries.values());
+            }
+        } finally {
+            writer.close();
+        }
+        return errors + writer.getErrors();
+    }
+
+    /**
+     * @return the digest recorded in the hashes file of a directory - empty if it has none
+     */
+    private Optional<HashEntry> readDigest(Path dir) throws IOException {
+        Path hashFile = dir.resolve(config.getHashFile());
+        if (!Files.exists(hashFile)) {
+            return Optional.empty();
+        }
+        Map<String, HashEntry> entries = new HashMap<>();
+        HashEntry.parseHashesFile(hashFile, entries);
+        return Optional.ofNullable(entries.get(HashEntry.DIRECTORY_DIGEST));
+    }
+}
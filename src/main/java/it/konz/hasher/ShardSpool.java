@@ -0,0 +1,496 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * The directory through which a {@link ShardCoordinator} hands shards to {@link ShardWorker}s. It only needs a file
+ * system all of them can see, so workers may run on other hosts if the spool is on a shared mount.
+ *
+ * Every shard is a small properties file that moves from {@value #PENDING} to {@value #CLAIMED} when a worker takes it
+ * and to {@value #DONE}, along with the worker's stats, when it is finished. The moves are atomic renames, so two
+ * workers never claim the same shard. A worker touches its claimed shards while it scans them; shards that are not
+ * touched for too long go back to {@value #PENDING}, and after too many attempts to {@value #FAILED}. The coordinator
+ * touches the {@value #ARGUMENTS} file the same way, so workers notice when it is gone.
+ *
+ * Every claim gets a unique name - '&lt;id&gt;.&lt;token&gt;' - so a worker that was too slow cannot finish or touch
+ * the claim of the worker that got the shard next. Whoever finishes or gives back a claim first renames it out of
+ * {@value #CLAIMED}; the other one then finds it gone.
+ */
+class ShardSpool {
+
+    public static final String ARGUMENTS = "arguments";
+    public static final String PENDING = "pending";
+    public static final String CLAIMED = "claimed";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String FINISHED = "finished";
+
+    /**
+     * How often a shard is handed out before it counts as failed.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CLAIM_SEPARATOR = ".";
+
+    private static final Logger logger = Logger.getLogger(ShardSpool.class.getName());
+
+    private final Path dir;
+
+    /**
+     * A part of a directory tree that is scanned as a whole.
+     */
+    public static class Shard {
+        private final String id;
+        private final Path root;
+        private final Path dir;
+        private final boolean recursive;
+        private final int attempts;
+        private final Stats stats;
+        // The name of the claim file - only for claimed shards
+        private final String claim;
+
+        /**
+         * Constructor.
+         *
+         * @param id the unique name of the shard
+         * @param root the root of the tree - filters and digests work relative to it
+         * @param dir the directory to scan
+         * @param recursive scan the whole subtree or just the files of the directory?
+         */
+        public Shard(String id, Path root, Path dir, boolean recursive) {
+            this(id, root, dir, recursive, 0, null, null);
+        }
+
+        private Shard(String id, Path root, Path dir, boolean recursive, int attempts, Stats stats, String claim) {
+            this.id = id;
+            this.root = root;
+            this.dir = dir;
+            this.recursive = recursive;
+            this.attempts = attempts;
+            this.stats = stats;
+            this.claim = claim;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Path getRoot() {
+            return root;
+        }
+
+        public Path getDir() {
+            return dir;
+        }
+
+        public boolean isRecursive() {
+            return recursive;
+        }
+
+        /**
+         * @return how often the shard was handed out and not finished
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return the stats of the worker - only for finished shards
+         */
+        public Stats getStats() {
+            return stats;
+        }
+
+        private Properties toProperties() {
+            Properties properties = stats == null ? new Properties() : stats.toProperties();
+            properties.setProperty("root", root.toString());
+            properties.setProperty("dir", dir.toString());
+            properties.setProperty("recursive", Boolean.toString(recursive));
+            properties.setProperty("attempts", Integer.toString(attempts));
+            return properties;
+        }
+
+        private static Shard fromProperties(String name, Properties properties, boolean claimed) {
+            String id = claimed ? name.substring(0, name.indexOf(CLAIM_SEPARATOR)) : name;
+            String root = properties.getProperty("root");
+            String dir = properties.getProperty("dir");
+            if (root == null || dir == null) {
+                throw new IllegalArgumentException("Invalid shard " + id + ": " + properties);
+            }
+            return new Shard(id, FileSystems.getDefault().getPath(root), FileSystems.getDefault().getPath(dir),
+                    Boolean.parseBoolean(properties.getProperty("recursive")),
+                    Integer.parseInt(properties.getProperty("attempts", "0")),
+                    properties.containsKey("runtime") ? Stats.fromProperties(properties) : null,
+                    claimed ? name : null);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dir the spool directory
+     */
+    public ShardSpool(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Sets up a new spool. An existing spool directory must not hold any shards.
+     *
+     * @param arguments the command line the workers scan with
+     * @throws IOException if the spool cannot be created or is in use
+     */
+    public void create(List<String> arguments) throws IOException {
+        for (String state : new String[] {PENDING, CLAIMED, DONE, FAILED}) {
+            Path stateDir = dir.resolve(state);
+            Files.createDirectories(stateDir);
+            if (!list(state).isEmpty()) {
+                throw new IOException("Spool " + dir + " is in use - " + stateDir + " is not empty.");
+            }
+        }
+        Files.deleteIfExists(dir.resolve(FINISHED));
+        writeAtomically(dir.resolve(ARGUMENTS), String.join("\n", arguments).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the command line the workers scan with
+     * @throws IOException if the spool was not set up
+     */
+    public List<String> readArguments() throws IOException {
+        List<String> arguments = new ArrayList<>();
+        for (String line : Files.readAllLines(dir.resolve(ARGUMENTS), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                arguments.add(line);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * Queues a shard.
+     *
+     * @param shard the shard
+     * @throws IOException if the shard cannot be written
+     */
+    public void add(Shard shard) throws IOException {
+        write(PENDING, shard);
+    }
+
+    /**
+     * Takes the next pending shard.
+     *
+     * @return the shard - empty if none is pending
+     * @throws IOException if the spool cannot be read
+     */
+    public Optional<Shard> claim() throws IOException {
+        for (String id : list(PENDING)) {
+            Path pending = dir.resolve(PENDING).resolve(id);
+            String claim = id + CLAIM_SEPARATOR + UUID.randomUUID();
+            try {
+                // Touched first, so the claim never looks stale
+                Files.setLastModifiedTime(pending, FileTime.from(Instant.now()));
+                Files.move(pending, dir.resolve(CLAIMED).resolve(claim), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // Another worker was faster
+                continue;
+            }
+            return Optional.of(read(CLAIMED, claim));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Tells the coordinator that a claimed shard is still being worked on.
+     *
+     * @param shard the shard
+     * @return false if the claim was taken back - the shard is someone else's now
+     */
+    public boolean heartbeat(Shard shard) {
+        Path claimed = dir.resolve(CLAIMED).resolve(shard.claim);
+        try {
+            // Touching would recreate a claim taken back in between, so look first
+            if (!Files.exists(claimed)) {
+                return false;
+            }
+            Files.setLastModifiedTime(claimed, FileTime.from(Instant.now()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            logger.fine("Could not touch shard " + shard.id + ": " + e);
+            return true;
+        }
+    }
+
+    /**
+     * Finishes a claimed shard.
+     *
+     * @param shard the shard
+     * @param stats the stats of its scan
+     * @return false if the claim was taken back in the meantime - the result is dropped then
+     * @throws IOException if the result cannot be written
+     */
+    public boolean complete(Shard shard, Stats stats) throws IOException {
+        Optional<Path> taken = take(shard);
+        if (!taken.isPresent()) {
+            return false;
+        }
+        write(DONE, new Shard(shard.id, shard.root, shard.dir, shard.recursive, shard.attempts, stats, null));
+        Files.deleteIfExists(taken.get());
+        return true;
+    }
+
+    /**
+     * Gives a claimed shard back, because it could not be scanned.
+     *
+     * @param shard the shard
+     * @return true if it is pending again or was given back already, false if it failed too often
+     * @throws IOException if the spool cannot be written
+     */
+    public boolean release(Shard shard) throws IOException {
+        Optional<Path> taken = take(shard);
+        if (!taken.isPresent()) {
+            return true;
+        }
+        Shard retry = new Shard(shard.id, shard.root, shard.dir, shard.recursive, shard.attempts + 1, null, null);
+        boolean pending = retry.attempts < MAX_ATTEMPTS;
+        write(pending ? PENDING : FAILED, retry);
+        Files.deleteIfExists(taken.get());
+        return pending;
+    }
+
+    /**
+     * Renames a claim out of {@value #CLAIMED}, so nobody else can finish or give it back.
+     *
+     * @return the new name of the claim - empty if someone else was first
+     */
+    private Optional<Path> take(Shard shard) throws IOException {
+        Path claimed = dir.resolve(CLAIMED).resolve(shard.claim);
+        Path taken = temp(claimed);
+        try {
+            Files.move(claimed, taken, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        return Optional.of(taken);
+    }
+
+    /**
+     * Gives back claimed shards whose worker has not touched them for too long.
+     *
+     * @param timeout how long a worker may stay silent
+     * @return the shards that failed too often
+     * @throws IOException if the spool cannot be read or written
+     */
+    public List<Shard> releaseStale(Duration timeout) throws IOException {
+        List<Shard> failed = new ArrayList<>();
+        Instant deadline = Instant.now().minus(timeout);
+        for (String claim : list(CLAIMED)) {
+            Shard shard;
+            try {
+                if (Files.getLastModifiedTime(dir.resolve(CLAIMED).resolve(claim)).toInstant().isAfter(deadline)) {
+                    continue;
+                }
+                shard = read(CLAIMED, claim);
+            } catch (NoSuchFileException e) {
+                // Finished in the meantime
+                continue;
+            }
+            logger.warning(String.format("No heartbeat for shard %s (%s) - handing it out again.", shard.id,
+                    shard.dir));
+            if (!release(shard)) {
+                failed.add(shard);
+            }
+        }
+
+        // A worker that died between taking its claim and reporting the result leaves the taken claim behind
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve(CLAIMED), TEMP_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toInstant().isAfter(deadline)) {
+                        continue;
+                    }
+                    String name = file.getFileName().toString();
+                    String claim = name.substring(TEMP_PREFIX.length(), name.length() - TEMP_SUFFIX.length());
+                    Shard shard = read(CLAIMED, name, claim);
+                    logger.warning(String.format("Shard %s (%s) was not reported - handing it out again.", shard.id,
+                            shard.dir));
+                    Shard retry = new Shard(shard.id, shard.root, shard.dir, shard.recursive, shard.attempts + 1,
+                            null, null);
+                    if (retry.attempts >= MAX_ATTEMPTS) {
+                        failed.add(retry);
+                    }
+                    write(retry.attempts < MAX_ATTEMPTS ? PENDING : FAILED, retry);
+                    Files.deleteIfExists(file);
+                } catch (NoSuchFileException e) {
+                    // Reported in the meantime
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @param state {@value #PENDING}, {@value #CLAIMED}, {@value #DONE} or {@value #FAILED}
+     * @return the ids of the shards in that state, sorted
+     * @throws IOException if the spool cannot be read
+     */
+    public List<String> list(String state) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve(state))) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(TEMP_PREFIX)) {
+                    ids.add(name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * @param state the state
+     * @param name the id of a shard in that state, or the name of its claim for {@value #CLAIMED}
+     * @return the shard
+     * @throws IOException if it cannot be read
+     */
+    public Shard read(String state, String name) throws IOException {
+        return read(state, name, name);
+    }
+
+    private Shard read(String state, String fileName, String name) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(state).resolve(fileName))) {
+            properties.load(in);
+        }
+        try {
+            return Shard.fromProperties(name, properties, state.equals(CLAIMED));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid shard file " + fileName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Tells the workers that the coordinator is still there.
+     */
+    public void touch() {
+        try {
+            Files.setLastModifiedTime(dir.resolve(ARGUMENTS), FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            logger.warning("Could not touch " + dir.resolve(ARGUMENTS) + ": " + e);
+        }
+    }
+
+    /**
+     * @param timeout how long the coordinator may stay silent
+     * @return true if the coordinator has not touched the spool for too long
+     */
+    public boolean isAbandoned(Duration timeout) {
+        try {
+            return Files.getLastModifiedTime(dir.resolve(ARGUMENTS)).toInstant().isBefore(Instant.now().minus(timeout));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Tells the workers to stop once nothing is pending.
+     *
+     * @throws IOException if the marker cannot be written
+     */
+    public void finish() throws IOException {
+        writeAtomically(dir.resolve(FINISHED), new byte[0]);
+    }
+
+    /**
+     * @return true if the coordinator has collected all results
+     */
+    public boolean isFinished() {
+        return Files.exists(dir.resolve(FINISHED));
+    }
+
+    /**
+     * Removes all files of the spool. The spool directory itself is kept.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public void clear() throws IOException {
+        for (String state : new String[] {PENDING, CLAIMED, DONE, FAILED}) {
+            Path stateDir = dir.resolve(state);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(stateDir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(stateDir);
+        }
+        Files.deleteIfExists(dir.resolve(ARGUMENTS));
+        Files.deleteIfExists(dir.resolve(FINISHED));
+    }
+
+    private void write(String state, Shard shard) throws IOException {
+        Path file = dir.resolve(state).resolve(shard.id);
+        try (OutputStream out = Files.newOutputStream(temp(file))) {
+            shard.toProperties().store(out, null);
+        }
+        moveIntoPlace(file);
+    }
+
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Files.write(temp(file), content);
+        moveIntoPlace(file);
+    }
+
+    private static Path temp(Path file) {
+        return file.resolveSibling(TEMP_PREFIX + file.getFileName() + TEMP_SUFFIX);
+    }
+
+    private static void moveIntoPlace(Path file) throws IOException {
+        try {
+            Files.move(temp(file), file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp(file), file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import com.beust.jcommander.ParameterException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Scans the shards a {@link ShardCoordinator} put into a {@link ShardSpool} until the coordinator says it is finished.
+ *
+ * The scan settings are taken from the command line the coordinator stored in the spool, so a worker only needs to
+ * know the spool: {@code hasher --worker <spool>}. Every shard gets its own {@link Scanner}, which writes the hashes
+ * files of that shard only.
+ */
+public class ShardWorker {
+
+    /**
+     * How long to wait before looking for new shards again.
+     */
+    public static final long POLL_MILLIS = 500L;
+
+    private static final Logger logger = Logger.getLogger(ShardWorker.class.getName());
+
+    private final ShardSpool spool;
+
+    /**
+     * Constructor.
+     *
+     * @param spoolDir the spool directory of the coordinator
+     */
+    public ShardWorker(Path spoolDir) {
+        this.spool = new ShardSpool(spoolDir);
+    }
+
+    /**
+     * Scans shards until there are no more.
+     *
+     * @return the stats of all scanned shards
+     * @throws ScanException if the spool cannot be used or the coordinator is gone
+     */
+    public Stats run() throws ScanException {
+        CommandLine commandLine;
+        try {
+            List<String> arguments = spool.readArguments();
+            commandLine = CommandLine.parse(arguments.toArray(new String[arguments.size()]));
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not read spool: " + e, e);
+        } catch (ParameterException e) {
+            throw new ScanException(Hasher.STATUS_COMMAND_LINE_ERROR, "Invalid command line in spool: " + e.getMessage(), e);
+        }
+        ScanConfig config = new HasherService(commandLine.toScanConfig()).getConfig();
+        Duration timeout = Duration.ofSeconds(commandLine.getShardTimeout());
+
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hasher-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Stats stats = Stats.EMPTY;
+        try {
+            while (true) {
+                Optional<ShardSpool.Shard> shard;
+                try {
+                    shard = spool.claim();
+                } catch (IOException e) {
+                    throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not read spool: " + e, e);
+                }
+                if (shard.isPresent()) {
+                    Scanner scanner = createScanner(config);
+                    long period = Math.max(1L, timeout.toMillis() / 4L);
+                    ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+                        // Handed out again - the worker that has it now writes the same hashes files
+                        if (!scanner.isCancelled() && !spool.heartbeat(shard.get())) {
+                            logger.warning("Shard " + shard.get().getId()
+                                    + " was handed out again - stopping its scan.");
+                            scanner.cancel();
+                        }
+                    }, period, period, TimeUnit.MILLISECONDS);
+                    try {
+                        stats = stats.add(scan(shard.get(), scanner));
+                    } finally {
+                        heartbeat.cancel(false);
+                    }
+                    continue;
+                }
+
+                if (spool.isFinished()) {
+                    return stats;
+                }
+                if (spool.isAbandoned(timeout)) {
+                    throw new ScanException(Hasher.STATUS_IO_ERROR, "The coordinator has not been seen for " + timeout);
+                }
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ScanException(Hasher.STATUS_IO_ERROR, "Interrupted while waiting for shards.", e);
+                }
+            }
+        } finally {
+            heartbeats.shutdownNow();
+        }
+    }
+
+    private static Scanner createScanner(ScanConfig config) {
+        try {
+            return config.createScanner();
+        } catch (NoSuchAlgorithmException e) {
+            // Checked by the service already
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Scans a shard and reports the result to the spool.
+     *
+     * @return the stats of the shard - empty if it could not be scanned or was handed out again
+     */
+    private Stats scan(ShardSpool.Shard shard, Scanner scanner) throws ScanException {
+        logger.info(String.format("Scanning shard %s: %s%s", shard.getId(), shard.getDir(),
+                shard.isRecursive() ? "" : " (files only)"));
+        Stats stats;
+        try {
+            stats = scanner.scan(shard.getRoot(), shard.getDir(), shard.isRecursive() ? Integer.MAX_VALUE : 1);
+        } catch (RuntimeException e) {
+            logger.severe("Scan of shard " + shard.getId() + " aborted: " + e);
+            try {
+                spool.release(shard);
+            } catch (IOException ex) {
+                logger.warning("Could not release shard " + shard.getId() + ": " + ex);
+            }
+            return Stats.EMPTY;
+        }
+        if (scanner.isCancelled()) {
+            // Neither finished nor given back - it is someone else's now
+            return Stats.EMPTY;
+        }
+
+        try {
+            if (!spool.complete(shard, stats)) {
+                // Too slow - the worker that got it next reports it
+                logger.warning("Shard " + shard.getId() + " was handed out again meanwhile - dropping its result.");
+                return Stats.EMPTY;
+            }
+        } catch (IOException e) {
+            throw new ScanException(Hasher.STATUS_IO_ERROR, "Could not report shard " + shard.getId() + ": " + e, e);
+        }
+        return stats;
+    }
+}
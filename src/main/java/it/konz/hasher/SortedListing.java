@@ -0,0 +1,361 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The files of one directory, sorted by name like the entries of a hashes file.
+ *
+ * Files are collected in memory until the memory budget is used up. Then they are sorted and spilled to a temporary
+ * file (a run). {@link #iterator()} merges all runs, so listings of any size can be sorted in bounded memory. The
+ * listings of a directory and its parents are open at the same time, so they share one {@link Budget}.
+ */
+class SortedListing implements Iterable<SortedListing.Entry>, Closeable {
+
+    /**
+     * Rough heap usage of an entry without the characters of its name.
+     */
+    private static final long ENTRY_OVERHEAD = 96L;
+
+    private final Budget budget;
+    private final List<Entry> buffer = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final List<DataInputStream> openRuns = new ArrayList<>();
+    private long bufferSize = 0L;
+
+    /**
+     * The heap all open listings of a walk may use together. Not thread-safe - the walk visits one file at a time.
+     */
+    static class Budget {
+        private final long limit;
+        private final Set<SortedListing> growing = Collections.newSetFromMap(new IdentityHashMap<>());
+        private long used = 0L;
+
+        /**
+         * Constructor.
+         *
+         * @param limit how many bytes of heap the listings may use together before they spill to disk
+         */
+        Budget(long limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * @param bytes heap taken
+         */
+        void use(long bytes) {
+            used += bytes;
+        }
+
+        /**
+         * @param bytes heap given back
+         */
+        void free(long bytes) {
+            used -= bytes;
+        }
+
+        /**
+         * @return Is more heap used than the limit allows?
+         */
+        boolean isExceeded() {
+            return used >= limit;
+        }
+
+        /**
+         * Spills the largest listings that still grow until the budget is kept again.
+         */
+        private void enforce() throws IOException {
+            while (isExceeded()) {
+                SortedListing largest = null;
+                for (SortedListing listing : growing) {
+                    if (largest == null || listing.bufferSize > largest.bufferSize) {
+                        largest = listing;
+                    }
+                }
+                if (largest == null || largest.bufferSize == 0L) {
+                    return;
+                }
+                largest.spill();
+            }
+        }
+    }
+
+    /**
+     * A file of the listing. Implements just enough of {@link BasicFileAttributes} for hashing it.
+     */
+    static class Entry implements BasicFileAttributes, Comparable<Entry> {
+        private final String name;
+        private final long size;
+        private final long seconds;
+        private final int nanos;
+        private final Object fileKey;
+        private final boolean excluded;
+
+        private Entry(String name, long size, long seconds, int nanos, Object fileKey, boolean excluded) {
+            this.name = name;
+            this.size = size;
+            this.seconds = seconds;
+            this.nanos = nanos;
+            this.fileKey = fileKey;
+            this.excluded = excluded;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Is the file excluded by the filter?
+         */
+        public boolean isExcluded() {
+            return excluded;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.from(TimeUnit.SECONDS.toNanos(seconds) + nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        /**
+         * @return the file key - null if the entry was spilled to disk
+         */
+        @Override
+        public Object fileKey() {
+            return fileKey;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeLong(seconds);
+            out.writeInt(nanos);
+            out.writeBoolean(excluded);
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), null, in.readBoolean());
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param budget the heap shared with the other open listings
+     */
+    public SortedListing(Budget budget) {
+        this.budget = budget;
+        budget.growing.add(this);
+    }
+
+    /**
+     * Adds a file to the listing.
+     *
+     * @param name the file name
+     * @param attrs the file attributes
+     * @param excluded is the file excluded by the filter
+     * @throws IOException if spilling to disk fails
+     */
+    public void add(String name, BasicFileAttributes attrs, boolean excluded) throws IOException {
+        long nanosSinceEpoch = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long seconds = Math.floorDiv(nanosSinceEpoch, TimeUnit.SECONDS.toNanos(1));
+        int nanos = (int) Math.floorMod(nanosSinceEpoch, TimeUnit.SECONDS.toNanos(1));
+        buffer.add(new Entry(name, attrs.size(), seconds, nanos, attrs.fileKey(), excluded));
+        long entrySize = ENTRY_OVERHEAD + 2L * name.length();
+        bufferSize += entrySize;
+        budget.use(entrySize);
+        budget.enforce();
+    }
+
+    /**
+     * @return Did the listing exceed the memory budget?
+     */
+    public boolean isSpilled() {
+        return !runs.isEmpty();
+    }
+
+    /**
+     * Iterates the files sorted by name. May only be called once.
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<Entry> iterator() {
+        budget.growing.remove(this);
+        if (runs.isEmpty()) {
+            Collections.sort(buffer);
+            return buffer.iterator();
+        }
+
+        try {
+            if (!buffer.isEmpty()) {
+                spill();
+            }
+            PriorityQueue<RunHead> heads = new PriorityQueue<>();
+            for (Path run : runs) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+                openRuns.add(in);
+                RunHead head = new RunHead(in);
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+            return new MergeIterator(heads);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes the runs.
+     */
+    @Override
+    public void close() throws IOException {
+        for (DataInputStream in : openRuns) {
+            in.close();
+        }
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        budget.growing.remove(this);
+        budget.free(bufferSize);
+        buffer.clear();
+        bufferSize = 0L;
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer);
+        Path run = Files.createTempFile("hasher-", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (Entry entry : buffer) {
+                entry.write(out);
+            }
+        }
+        buffer.clear();
+        budget.free(bufferSize);
+        bufferSize = 0L;
+    }
+
+    /**
+     * The next entry of one run.
+     */
+    private static class RunHead implements Comparable<RunHead> {
+        private final DataInputStream in;
+        private Entry current;
+
+        private RunHead(DataInputStream in) {
+            this.in = in;
+        }
+
+        private boolean advance() throws IOException {
+            try {
+                current = Entry.read(in);
+                return true;
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(RunHead o) {
+            return current.compareTo(o.current);
+        }
+    }
+
+    /**
+     * K-way merge of the runs.
+     */
+    private static class MergeIterator implements Iterator<Entry> {
+        private final PriorityQueue<RunHead> heads;
+
+        private MergeIterator(PriorityQueue<RunHead> heads) {
+            this.heads = heads;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Entry next() {
+            RunHead head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = head.current;
+            try {
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entry;
+        }
+    }
+}
@@ -19,6 +19,14 @@
 package it.konz.hasher;
 
 import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * The statistics of the performed operation.
@@ -39,13 +47,35 @@ public class Stats {
     private final long filesHashed;
     private final long verificationErrors;
     private final long otherErrors;
+    private final long bytesDeduplicated;
+    private final Map<String, IoSettings> ioSettings;
+    private final List<Double> workerUtilisation;
 
     public Stats(final Duration runtime, final long bytesHashed, final long filesHashed, final long verificationErrors, final long otherErrors) {
+        this(runtime, bytesHashed, filesHashed, verificationErrors, otherErrors, 0L);
+    }
+
+    public Stats(final Duration runtime, final long bytesHashed, final long filesHashed, final long verificationErrors, final long otherErrors,
+                 final long bytesDeduplicated) {
+        this(runtime, bytesHashed, filesHashed, verificationErrors, otherErrors, bytesDeduplicated, Collections.emptyMap());
+    }
+
+    public Stats(final Duration runtime, final long bytesHashed, final long filesHashed, final long verificationErrors, final long otherErrors,
+                 final long bytesDeduplicated, final Map<String, IoSettings> ioSettings) {
+        this(runtime, bytesHashed, filesHashed, verificationErrors, otherErrors, bytesDeduplicated, ioSettings,
+                Collections.emptyList());
+    }
+
+    public Stats(final Duration runtime, final long bytesHashed, final long filesHashed, final long verificationErrors, final long otherErrors,
+                 final long bytesDeduplicated, final Map<String, IoSettings> ioSettings, final List<Double> workerUtilisation) {
         this.runtime = runtime;
         this.bytesHashed = bytesHashed;
         this.filesHashed = filesHashed;
         this.verificationErrors = verificationErrors;
         this.otherErrors = otherErrors;
+        this.bytesDeduplicated = bytesDeduplicated;
+        this.ioSettings = Collections.unmodifiableMap(new LinkedHashMap<>(ioSettings));
+        this.workerUtilisation = Collections.unmodifiableList(new ArrayList<>(workerUtilisation));
     }
 
     public Duration getRuntime() {
@@ -68,6 +98,28 @@ public class Stats {
         return otherErrors;
     }
 
+    /**
+     * @return the bytes that did not have to be read, because another hard link of the same file was already hashed
+     * or the hash was found in the content cache
+     */
+    public long getBytesDeduplicated() {
+        return bytesDeduplicated;
+    }
+
+    /**
+     * @return the I/O settings adaptive tuning arrived at per mount - empty if tuning was not adaptive
+     */
+    public Map<String, IoSettings> getIoSettings() {
+        return ioSettings;
+    }
+
+    /**
+     * @return the fraction of the time every hashing thread was busy - empty if files were hashed on the walking thread
+     */
+    public List<Double> getWorkerUtilisation() {
+        return workerUtilisation;
+    }
+
     public double getRate() {
         if (runtime.equals(Duration.ZERO)) {
             return 0.0d;
@@ -83,11 +135,81 @@ public class Stats {
         sb.append("Verification errors: ").append(verificationErrors).append('\n');
         sb.append("Other errors:        ").append(otherErrors).append('\n');
         sb.append("Size of files (MiB): ").append(bytesHashed * 1.0d / MI).append('\n');
+        if (bytesDeduplicated != 0L) {
+            sb.append("Not re-read (MiB):   ").append(bytesDeduplicated * 1.0d / MI).append('\n');
+        }
         sb.append("Runtime:             ").append(runtime.toString()).append('\n');
         sb.append("Rate (MiB/s):        ").append(getRate() / MI).append('\n');
+        if (!workerUtilisation.isEmpty()) {
+            sb.append("Worker utilisation: ");
+            for (double utilisation : workerUtilisation) {
+                sb.append(' ').append(Math.round(utilisation * 100.0d)).append('%');
+            }
+            sb.append('\n');
+        }
+        for (Map.Entry<String, IoSettings> entry : ioSettings.entrySet()) {
+            sb.append("Tuned ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
         return sb.toString();
     }
 
+    /**
+     * Writes the counters to properties, so they can be handed to another process. I/O settings and worker
+     * utilisation are left out.
+     *
+     * @return the properties
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("runtime", runtime.toString());
+        properties.setProperty("bytesHashed", Long.toString(bytesHashed));
+        properties.setProperty("filesHashed", Long.toString(filesHashed));
+        properties.setProperty("verificationErrors", Long.toString(verificationErrors));
+        properties.setProperty("otherErrors", Long.toString(otherErrors));
+        properties.setProperty("bytesDeduplicated", Long.toString(bytesDeduplicated));
+        return properties;
+    }
+
+    /**
+     * Reads stats written by {@link #toProperties()}.
+     *
+     * @param properties the properties
+     * @return the stats
+     * @throws IllegalArgumentException if a counter is missing or invalid
+     */
+    public static Stats fromProperties(Properties properties) {
+        try {
+            return new Stats(
+                    Duration.parse(properties.getProperty("runtime")),
+                    Long.parseLong(properties.getProperty("bytesHashed")),
+                    Long.parseLong(properties.getProperty("filesHashed")),
+                    Long.parseLong(properties.getProperty("verificationErrors")),
+                    Long.parseLong(properties.getProperty("otherErrors")),
+                    Long.parseLong(properties.getProperty("bytesDeduplicated")));
+        } catch (NullPointerException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid stats: " + properties, e);
+        }
+    }
+
+    /**
+     * Sums up the stats of operations that ran at the same time.
+     *
+     * Unlike {@link #add(Stats)} the runtime is not summed up but replaced with the wall-clock time of all operations,
+     * so the rate reflects the combined throughput.
+     *
+     * @param stats the stats of the single operations
+     * @param wallClock the time from the start of the first to the end of the last operation
+     * @return the aggregate
+     */
+    public static Stats aggregate(Collection<Stats> stats, Duration wallClock) {
+        Stats sum = EMPTY;
+        for (Stats single : stats) {
+            sum = sum.add(single);
+        }
+        return new Stats(wallClock, sum.bytesHashed, sum.filesHashed, sum.verificationErrors, sum.otherErrors,
+                sum.bytesDeduplicated, sum.ioSettings, sum.workerUtilisation);
+    }
+
     /**
      * Creates a new stats object by adding this to the other.
      *
@@ -95,11 +217,18 @@ public class Stats {
      * @return the sum
      */
     public Stats add(Stats other) {
+        Map<String, IoSettings> settings = new LinkedHashMap<>(ioSettings);
+        settings.putAll(other.ioSettings);
+        List<Double> utilisation = new ArrayList<>(workerUtilisation);
+        utilisation.addAll(other.workerUtilisation);
         return new Stats(
                 runtime.plus(other.runtime),
                 bytesHashed + other.bytesHashed,
                 filesHashed + other.filesHashed,
                 verificationErrors + other.verificationErrors,
-                otherErrors + other.otherErrors);
+                otherErrors + other.otherErrors,
+                bytesDeduplicated + other.bytesDeduplicated,
+                settings,
+                utilisation);
     }
 }
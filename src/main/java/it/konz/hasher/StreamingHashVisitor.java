@@ -0,0 +1,485 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.*;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Scanner's file visitor for directories with millions of files.
+ *
+ * Instead of holding all entries of a directory in a map, the files are collected in a {@link SortedListing} and
+ * merge-joined with the sorted hashes file once the directory is complete. The new entries are held back until the
+ * first change shows up and written to the new hashes file right away from then on, so an unchanged directory is not
+ * rewritten. The listings of the open directories and the held back entries share the memory budget and spill to disk
+ * past it.
+ *
+ * Files of a listing that spilled to disk have no file key, so they bypass the link and content caches.
+ *
+ * The entries are written in order, so files are always hashed on the walking thread.
+ */
+class StreamingHashVisitor extends HashVisitor {
+
+    private static final Logger logger = Logger.getLogger(StreamingHashVisitor.class.getName());
+
+    private final SortedListing.Budget budget;
+    private final Map<Path, SortedListing> listings = new HashMap<>();
+    private final Map<Path, DirectoryDigest> digests = new HashMap<>();
+
+    public StreamingHashVisitor(final Scanner scanner, final HashesWriter writer, final Path root,
+                                final Map<String, IoSettings> initialIoSettings, final long memoryBudget) {
+        super(scanner, writer, root, initialIoSettings);
+        this.budget = new SortedListing.Budget(memoryBudget);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (scanner.isCancelled()) {
+            return FileVisitResult.TERMINATE;
+        }
+        if (scanner.getFilter().excludesDirectory(root, dir)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+        if (scanner.isVerify() && !dir.resolve(scanner.getHashFileName()).toFile().exists()) {
+            logger.info("Unhashed directory: " + dir.toString());
+        }
+        listings.put(dir, new SortedListing(budget));
+        if (scanner.isUpdate()) {
+            digests.put(dir, new DirectoryDigest(scanner.getAlgorithm()));
+        }
+        attachTuner(dir);
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (scanner.isCancelled()) {
+            return FileVisitResult.TERMINATE;
+        }
+        String name = file.getFileName().toString();
+
+        // A subdirectory beyond the depth limit - the digest would miss it
+        if (attrs.isDirectory()) {
+            incomplete(file.getParent());
+        }
+
+        // Don't hash the hashes file
+        if (!attrs.isRegularFile() || scanner.isHashesFile(name)) {
+            return FileVisitResult.CONTINUE;
+        }
+
+        listings.get(file.getParent()).add(name, attrs, scanner.getFilter().excludesFile(root, file, attrs));
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        DirectoryDigest digest = digests.remove(dir);
+        Optional<HashEntry> digestEntry = Optional.empty();
+        try (SortedListing listing = listings.remove(dir)) {
+            if (exc == null) {
+                digestEntry = merge(dir, listing, digest);
+            }
+        } finally {
+            detachTuner(dir);
+            // Children are post-visited before their parent
+            DirectoryDigest parent = dir.equals(root) ? null : digests.get(dir.getParent());
+            if (parent != null) {
+                parent.addChild(dir.getFileName().toString(), digestEntry);
+            }
+        }
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    protected void incomplete(Path dir) {
+        DirectoryDigest digest = digests.get(dir);
+        if (digest != null) {
+            digest.setIncomplete();
+        }
+    }
+
+    /**
+     * Walks the listing and the old entries side by side and writes the new hashes file.
+     *
+     * @param dir the directory
+     * @param listing the files of the directory
+     * @param digest collects the digest of the directory - null if not updating
+     * @return the digest of the directory - empty if there is none
+     */
+    private Optional<HashEntry> merge(Path dir, SortedListing listing, DirectoryDigest digest) throws IOException {
+        Path hashFile = dir.resolve(scanner.getHashFileName());
+        Path tempFile = dir.resolve(scanner.getHashFileName() + HashesWriter.TEMP_SUFFIX);
+        boolean changed = !hashFile.toFile().exists();
+        Optional<HashEntry> digestEntry = Optional.empty();
+
+        NewEntries out = scanner.isUpdate() ? new NewEntries(tempFile) : null;
+        try (OldEntries old = new OldEntries(hashFile)) {
+
+            for (SortedListing.Entry file : listing) {
+                // Entries before the current file belong to files that do not exist anymore
+                while (old.peek() != null && old.peek().getName().compareTo(file.getName()) < 0) {
+                    old.next();
+                    changed = true;
+                }
+                Optional<HashEntry> entry = Optional.empty();
+                if (old.peek() != null && old.peek().getName().equals(file.getName())) {
+                    entry = Optional.of(old.next());
+                }
+
+                // Keep the entries of excluded files, so changing the filter does not cause rehashing later
+                HashEntry newEntry = file.isExcluded() ? entry.orElse(null) : process(dir.resolve(file.getName()), file, entry, digest);
+                if (out != null && newEntry != null) {
+                    changed |= newEntry.wasChanged();
+                    out.add(newEntry, changed);
+                    digest.add(newEntry);
+                }
+            }
+            if (old.peek() != null) {
+                changed = true;
+            }
+
+            if (out != null) {
+                digestEntry = digest.finish();
+                changed |= !digestEntry.equals(old.getDigest());
+                if (changed) {
+                    if (digestEntry.isPresent()) {
+                        out.add(digestEntry.get(), true);
+                    }
+                    out.finish(scanner.getDurability() != Durability.NONE);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            addOtherErrors(1L);
+            logger.warning("Could not write hash file: " + hashFile + ": " + e);
+            changed = false;
+            digestEntry = Optional.empty();
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        if (!scanner.isUpdate()) {
+            return digestEntry;
+        }
+        if (changed && !scanner.isCancelled()) {
+            try {
+                HashesWriter.moveIntoPlace(tempFile, hashFile);
+                if (scanner.getDurability() == Durability.SYNC) {
+                    HashesWriter.syncDirectory(dir);
+                }
+            } catch (IOException e) {
+                addOtherErrors(1L);
+                logger.warning("Could not write hash file: " + hashFile + ": " + e);
+                digestEntry = Optional.empty();
+            }
+        }
+        Files.deleteIfExists(tempFile);
+        if (dir.equals(root) && digestEntry.isPresent()) {
+            logger.info(String.format("Digest of %s: %s %s", dir, digestEntry.get().getAlgorithm(),
+                    Base64.getEncoder().encodeToString(digestEntry.get().getHash())));
+        }
+        return digestEntry;
+    }
+
+    /**
+     * Verifies and/or updates a single file.
+     *
+     * @return the entry to write - null if there is none
+     */
+    private HashEntry process(Path file, BasicFileAttributes attrs, Optional<HashEntry> entry, DirectoryDigest digest) {
+        boolean verified = false;
+        if (scanner.isVerify()) {
+            try {
+                verified = verify(entry, file, attrs);
+            } catch (IOException e) {
+                readFailed(file, e);
+                if (digest != null) {
+                    digest.setIncomplete();
+                }
+                return entry.orElse(null);
+            }
+        }
+
+        if (scanner.isUpdate()) {
+            try {
+                return update(file, attrs, entry, verified);
+            } catch (IOException e) {
+                readFailed(file, e);
+                digest.setIncomplete();
+                return entry.orElse(null);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The entries of the new hashes file. They are kept in memory until the first change or the memory budget makes
+     * writing them necessary.
+     */
+    private class NewEntries implements Closeable {
+        /**
+         * Rough heap usage of a held back entry without the characters of its line.
+         */
+        private static final long LINE_OVERHEAD = 64L;
+
+        private final Path tempFile;
+        private final List<String> held = new ArrayList<>();
+        private long heldSize = 0L;
+        private FileOutputStream out;
+        private BufferedWriter bw;
+
+        private NewEntries(Path tempFile) {
+            this.tempFile = tempFile;
+        }
+
+        /**
+         * @param entry the next entry
+         * @param changed has anything changed so far
+         */
+        private void add(HashEntry entry, boolean changed) throws IOException {
+            String line = entry.toString();
+            if (bw == null) {
+                held.add(line);
+                long lineSize = LINE_OVERHEAD + 2L * line.length();
+                heldSize += lineSize;
+                budget.use(lineSize);
+                if (changed || budget.isExceeded()) {
+                    open();
+                }
+                return;
+            }
+            bw.write(line);
+            bw.newLine();
+        }
+
+        /**
+         * Writes the temp file completely.
+         *
+         * @param sync force it to the disk
+         */
+        private void finish(boolean sync) throws IOException {
+            if (bw == null) {
+                open();
+            }
+            bw.flush();
+            if (sync) {
+                out.getFD().sync();
+            }
+            bw.close();
+        }
+
+        private void open() throws IOException {
+            out = new FileOutputStream(tempFile.toFile());
+            bw = new BufferedWriter(new OutputStreamWriter(out));
+            for (String line : held) {
+                bw.write(line);
+                bw.newLine();
+            }
+            held.clear();
+            budget.free(heldSize);
+            heldSize = 0L;
+        }
+
+        @Override
+        public void close() throws IOException {
+            held.clear();
+            budget.free(heldSize);
+            heldSize = 0L;
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * The entries of the old hashes file in name order, with the journal applied on top.
+     *
+     * Only the journal is kept in memory - it is small compared to the hashes file by design.
+     */
+    private class OldEntries implements Closeable {
+        private final Path hashFile;
+        private final BufferedReader base;
+        private final Iterator<Map.Entry<String, Optional<HashEntry>>> journal;
+        private HashEntry nextBase;
+        private Map.Entry<String, Optional<HashEntry>> nextJournal;
+        private HashEntry head;
+        private boolean unsortedReported = false;
+        private Optional<HashEntry> digest = Optional.empty();
+
+        private OldEntries(Path hashFile) throws IOException {
+            this.hashFile = hashFile;
+            BufferedReader reader = null;
+            if (hashFile.toFile().exists()) {
+                try {
+                    reader = new BufferedReader(new FileReader(hashFile.toFile()));
+                } catch (IOException e) {
+                    addOtherErrors(1L);
+                    logger.warning("Could not read hash file: " + hashFile + ": " + e);
+                }
+            }
+            this.base = reader;
+            TreeMap<String, Optional<HashEntry>> changes = readJournal(hashFile, HashEntry.journalPath(hashFile));
+            Optional<HashEntry> journalledDigest = changes.remove(HashEntry.DIRECTORY_DIGEST);
+            this.journal = changes.entrySet().iterator();
+            advanceBase();
+            advanceJournal();
+            advance();
+            if (journalledDigest != null) {
+                digest = journalledDigest;
+            }
+        }
+
+        private HashEntry peek() {
+            return head;
+        }
+
+        /**
+         * @return the recorded digest of the directory - the journal's, if it has one
+         */
+        private Optional<HashEntry> getDigest() {
+            return digest;
+        }
+
+        private HashEntry next() throws IOException {
+            HashEntry entry = head;
+            advance();
+            return entry;
+        }
+
+        private void advance() throws IOException {
+            while (true) {
+                if (nextJournal == null || (nextBase != null && nextBase.getName().compareTo(nextJournal.getKey()) < 0)) {
+                    head = nextBase;
+                    advanceBase();
+                    return;
+                }
+                if (nextBase != null && nextBase.getName().equals(nextJournal.getKey())) {
+                    // Replaced or removed by the journal
+                    advanceBase();
+                }
+                Optional<HashEntry> journalled = nextJournal.getValue();
+                advanceJournal();
+                if (journalled.isPresent()) {
+                    head = journalled.get();
+                    return;
+                }
+            }
+        }
+
+        private void advanceBase() throws IOException {
+            String previous = nextBase == null ? null : nextBase.getName();
+            nextBase = null;
+            if (base == null) {
+                return;
+            }
+            String line;
+            while ((line = base.readLine()) != null) {
+                HashEntry entry;
+                try {
+                    entry = HashEntry.fromString(line);
+                } catch (Exception e) {
+                    logger.warning("Error parsing line from file " + hashFile + ": " + e);
+                    addOtherErrors(1L);
+                    continue;
+                }
+                if (entry.isDirectoryDigest()) {
+                    // The last line - not merged with the files
+                    digest = Optional.of(entry);
+                    continue;
+                }
+                if (previous != null && entry.getName().compareTo(previous) <= 0) {
+                    // The file will simply be hashed again
+                    if (!unsortedReported) {
+                        logger.warning("Hash file is not sorted: " + hashFile);
+                        addOtherErrors(1L);
+                        unsortedReported = true;
+                    }
+                    continue;
+                }
+                nextBase = entry;
+                return;
+            }
+        }
+
+        private void advanceJournal() {
+            nextJournal = journal.hasNext() ? journal.next() : null;
+        }
+
+        private TreeMap<String, Optional<HashEntry>> readJournal(Path hashFile, Path journalPath) {
+            TreeMap<String, Optional<HashEntry>> changes = new TreeMap<>();
+            if (!journalPath.toFile().exists()) {
+                return changes;
+            }
+
+            try (BufferedReader br = new BufferedReader(new FileReader(journalPath.toFile()))) {
+                String line;
+                boolean first = true;
+                while ((line = br.readLine()) != null) {
+                    if (first) {
+                        first = false;
+                        if (!HashEntry.isJournalOf(hashFile, line)) {
+                            logger.info("Ignoring journal of an older hash file: " + journalPath);
+                            break;
+                        }
+                        if (!line.isEmpty() && line.charAt(0) == HashEntry.JOURNAL_BASE) {
+                            continue;
+                        }
+                    }
+                    if (!line.isEmpty() && line.charAt(0) == HashEntry.JOURNAL_REMOVE) {
+                        changes.put(line.substring(1), Optional.empty());
+                        continue;
+                    }
+                    try {
+                        if (line.isEmpty() || line.charAt(0) != HashEntry.JOURNAL_PUT) {
+                            throw new IllegalArgumentException(String.format("Incorrect journal entry format: %s", line));
+                        }
+                        HashEntry entry = HashEntry.fromString(line.substring(1));
+                        changes.put(entry.getName(), Optional.of(entry));
+                    } catch (Exception e) {
+                        logger.warning("Error parsing line from file " + journalPath + ": " + e);
+                        addOtherErrors(1L);
+                    }
+                }
+            } catch (IOException e) {
+                addOtherErrors(1L);
+                logger.warning("Could not read journal: " + journalPath + ": " + e);
+            }
+
+            return changes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (base != null) {
+                base.close();
+            }
+        }
+    }
+}
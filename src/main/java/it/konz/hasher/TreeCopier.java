@@ -0,0 +1,444 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies a directory tree and writes the hashes files of the copy, reading every source file only once.
+ *
+ * The walk reads each file into a buffer and hashes it, then hands the buffer to a writer thread, which writes it to
+ * the copy and gives it back. The writer works through the buffers in order, so while it writes the end of one file the
+ * walk already reads the next one. Once a file is written, the writer sets its modification time, optionally reads the
+ * copy back to check it, and adds its entry to the directory. When a directory is done, its hashes file - including the
+ * directory digest - is queued for writing.
+ *
+ * The source tree is not changed. Its hashes files are not copied, excluded files and directories are left out, and
+ * symbolic links are copied as links.
+ */
+class TreeCopier {
+
+    /**
+     * How many buffers the walk may fill before the writer has written them.
+     */
+    public static final int BUFFERS = 8;
+
+    private static final Logger logger = Logger.getLogger(TreeCopier.class.getName());
+
+    private final Path source;
+    private final Path target;
+    private final ScanConfig config;
+    private final ScanFilter filter;
+    private final boolean verify;
+    private final MessageDigest digest;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(BUFFERS);
+    private final AtomicLong otherErrors = new AtomicLong();
+    // Fields below are only used by the writer thread
+    private final MessageDigest verifyDigest;
+    private final ByteBuffer verifyBuffer;
+    private final Map<Path, FileTime> directoryTimes = new LinkedHashMap<>();
+    private long bytesCopied = 0L;
+    private long filesCopied = 0L;
+    private long verificationErrors = 0L;
+
+    /**
+     * A directory of the walk.
+     */
+    private static class CopiedDirectory {
+        private final Path target;
+        private final CopiedDirectory parent;
+        private final List<HashEntry> hashEntries = new ArrayList<>();
+        private final DirectoryDigest digest;
+
+        private CopiedDirectory(Path target, CopiedDirectory parent, String algorithm) {
+            this.target = target;
+            this.parent = parent;
+            this.digest = new DirectoryDigest(algorithm);
+        }
+    }
+
+    /**
+     * A file being copied.
+     */
+    private static class CopiedFile {
+        private final CopiedDirectory dir;
+        private final Path target;
+        private final BasicFileAttributes attrs;
+        private final FileChannel channel;
+        private volatile IOException failure = null;
+
+        private CopiedFile(CopiedDirectory dir, Path target, BasicFileAttributes attrs, FileChannel channel) {
+            this.dir = dir;
+            this.target = target;
+            this.attrs = attrs;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param source the directory to copy
+     * @param target where to copy it - must not exist or be empty
+     * @param config the settings - algorithm, buffer size, filter and how to write the hashes files
+     * @param verify read every copied file back and compare its hash?
+     */
+    public TreeCopier(Path source, Path target, ScanConfig config, boolean verify) {
+        this.source = source;
+        this.target = target;
+        this.config = config;
+        this.filter = config.createFilter();
+        this.verify = verify;
+        try {
+            this.digest = MessageDigest.getInstance(config.getAlgorithm());
+            this.verifyDigest = MessageDigest.getInstance(config.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            // Checked by the service already
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < BUFFERS; i++) {
+            freeBuffers.add(ByteBuffer.allocate(config.getBufferSize()));
+        }
+        this.verifyBuffer = verify ? ByteBuffer.allocate(config.getBufferSize()) : null;
+    }
+
+    /**
+     * Copies the tree.
+     *
+     * @return the stats - copies that differ from their source count as verification errors
+     * @throws IOException if the walk fails
+     * @throws InterruptedException if interrupted while waiting for the writers
+     */
+    public Stats copy() throws IOException, InterruptedException {
+        Instant startTime = Instant.now();
+        ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hasher-copy-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        HashesWriter hashesWriter = new HashesWriter(config.getHashFile(), config.getDurability(), config.getWriteQueue(),
+                config.getJournalRatio());
+        try {
+            Files.walkFileTree(source, new CopyVisitor(writer, hashesWriter));
+        } finally {
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            hashesWriter.close();
+        }
+
+        // Writing the files changed them, so the directories get their times last, deepest first
+        for (Map.Entry<Path, FileTime> directoryTime : directoryTimes.entrySet()) {
+            try {
+                Files.setLastModifiedTime(directoryTime.getKey(), directoryTime.getValue());
+            } catch (IOException e) {
+                logger.warning("Could not set modification time of " + directoryTime.getKey() + ": " + e);
+                otherErrors.incrementAndGet();
+            }
+        }
+
+        logger.info(String.format("Copied %d files to %s.", filesCopied, target));
+        return new Stats(Duration.between(startTime, Instant.now()), bytesCopied, filesCopied, verificationErrors,
+                otherErrors.get() + hashesWriter.getErrors());
+    }
+
+    private class CopyVisitor extends SimpleFileVisitor<Path> {
+
+        private final ExecutorService writer;
+        private final HashesWriter hashesWriter;
+        private final Deque<CopiedDirectory> dirs = new ArrayDeque<>();
+
+        private CopyVisitor(ExecutorService writer, HashesWriter hashesWriter) {
+            this.writer = writer;
+            this.hashesWriter = hashesWriter;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            if (filter.excludesDirectory(source, dir)) {
+                if (logger.isLoggable(Level.FINE)) logger.fine("Excluded directory not copied: " + dir);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            Path targetDir = target.resolve(source.relativize(dir).toString());
+            try {
+                Files.createDirectories(targetDir);
+            } catch (IOException e) {
+                logger.warning("Could not create directory " + targetDir + ": " + e);
+                otherErrors.incrementAndGet();
+                if (!dirs.isEmpty()) {
+                    dirs.peek().digest.setIncomplete();
+                }
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            dirs.push(new CopiedDirectory(targetDir, dirs.peek(), config.getAlgorithm()));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            CopiedDirectory dir = dirs.peek();
+            String name = file.getFileName().toString();
+            if (isHashesFile(name) || filter.excludesFile(source, file, attrs)) {
+                return FileVisitResult.CONTINUE;
+            }
+            Path targetFile = dir.target.resolve(name);
+
+            if (attrs.isSymbolicLink()) {
+                try {
+                    Files.copy(file, targetFile, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+                } catch (IOException e) {
+                    logger.warning("Could not copy link " + file + ": " + e);
+                    otherErrors.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            if (!attrs.isRegularFile()) {
+                logger.warning("Not a regular file, not copied: " + file);
+                otherErrors.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+
+            try {
+                copy(file, new CopiedFile(dir, targetFile, attrs, FileChannel.open(targetFile,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while copying " + file);
+            } catch (IOException e) {
+                logger.warning("Could not copy " + file + ": " + e);
+                otherErrors.incrementAndGet();
+                dir.digest.setIncomplete();
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            logger.warning("Could not read " + file + ": " + exc);
+            otherErrors.incrementAndGet();
+            if (!dirs.isEmpty()) {
+                dirs.peek().digest.setIncomplete();
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            CopiedDirectory copied = dirs.pop();
+            if (exc != null) {
+                logger.warning("Could not list " + dir + ": " + exc);
+                otherErrors.incrementAndGet();
+                copied.digest.setIncomplete();
+            }
+            FileTime time;
+            try {
+                time = Files.getLastModifiedTime(dir);
+            } catch (IOException e) {
+                time = null;
+            }
+            FileTime dirTime = time;
+            writer.execute(() -> finish(copied, dirTime, hashesWriter));
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Reads and hashes a file and hands its content to the writer.
+         */
+        private void copy(Path file, CopiedFile copied) throws IOException, InterruptedException {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (copied.failure == null) {
+                    ByteBuffer buff = freeBuffers.take();
+                    buff.clear();
+                    if (in.read(buff) == -1) {
+                        freeBuffers.add(buff);
+                        break;
+                    }
+                    buff.flip();
+                    digest.update(buff.array(), buff.arrayOffset(), buff.limit());
+                    writer.execute(() -> write(copied, buff));
+                }
+            } catch (IOException e) {
+                digest.reset();
+                writer.execute(() -> abort(copied));
+                throw e;
+            }
+            byte[] hash = digest.digest();
+            writer.execute(() -> complete(copied, hash));
+        }
+    }
+
+    private boolean isHashesFile(String fileName) {
+        String hashFileName = config.getHashFile();
+        return fileName.equals(hashFileName) || fileName.equals(hashFileName + HashesWriter.TEMP_SUFFIX)
+                || fileName.equals(hashFileName + HashEntry.JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Writes a buffer to the copy and gives it back. Runs on the writer thread.
+     */
+    private void write(CopiedFile copied, ByteBuffer buff) {
+        try {
+            if (copied.failure == null) {
+                while (buff.hasRemaining()) {
+                    copied.channel.write(buff);
+                }
+            }
+        } catch (IOException e) {
+            copied.failure = e;
+        } finally {
+            freeBuffers.add(buff);
+        }
+    }
+
+    /**
+     * Closes and removes the copy of a file that could not be read. Runs on the writer thread.
+     */
+    private void abort(CopiedFile copied) {
+        try {
+            copied.channel.close();
+            Files.deleteIfExists(copied.target);
+        } catch (IOException e) {
+            logger.warning("Could not remove incomplete copy " + copied.target + ": " + e);
+        }
+    }
+
+    /**
+     * Finishes the copy of a file and adds its entry to the directory. Runs on the writer thread.
+     */
+    private void complete(CopiedFile copied, byte[] hash) {
+        try {
+            if (copied.failure == null && config.getDurability() != Durability.NONE) {
+                copied.channel.force(false);
+            }
+            copied.channel.close();
+        } catch (IOException e) {
+            if (copied.failure == null) {
+                copied.failure = e;
+            }
+        }
+        if (copied.failure != null) {
+            logger.warning("Could not write " + copied.target + ": " + copied.failure);
+            otherErrors.incrementAndGet();
+            copied.dir.digest.setIncomplete();
+            abort(copied);
+            return;
+        }
+
+        try {
+            Files.setLastModifiedTime(copied.target, copied.attrs.lastModifiedTime());
+            if (verify && !Arrays.equals(hash, readBack(copied.target))) {
+                logger.warning("Copy differs from source: " + copied.target);
+                verificationErrors++;
+                copied.dir.digest.setIncomplete();
+                return;
+            }
+        } catch (IOException e) {
+            logger.warning("Could not check " + copied.target + ": " + e);
+            otherErrors.incrementAndGet();
+            copied.dir.digest.setIncomplete();
+            return;
+        }
+
+        String name = copied.target.getFileName().toString();
+        copied.dir.hashEntries.add(new HashEntry(name, copied.attrs.lastModifiedTime(), copied.attrs.size(),
+                config.getAlgorithm(), hash));
+        bytesCopied += copied.attrs.size();
+        filesCopied++;
+        if (logger.isLoggable(Level.FINE)) logger.fine("Copied: " + copied.target);
+    }
+
+    /**
+     * @return the hash of a copied file as read from the disk
+     */
+    private byte[] readBack(Path file) throws IOException {
+        verifyDigest.reset();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            verifyBuffer.clear();
+            while (in.read(verifyBuffer) != -1) {
+                verifyBuffer.flip();
+                verifyDigest.update(verifyBuffer);
+                verifyBuffer.clear();
+            }
+        }
+        return verifyDigest.digest();
+    }
+
+    /**
+     * Queues the hashes file of a directory once all of its files are written. Runs on the writer thread.
+     */
+    private void finish(CopiedDirectory dir, FileTime time, HashesWriter hashesWriter) {
+        List<HashEntry> entries = new ArrayList<>(dir.hashEntries);
+        entries.sort(null);
+        for (HashEntry entry : entries) {
+            dir.digest.add(entry);
+        }
+        Optional<HashEntry> digestEntry = dir.digest.finish();
+        digestEntry.ifPresent(entries::add);
+        if (dir.parent != null) {
+            dir.parent.digest.addChild(dir.target.getFileName().toString(), digestEntry);
+        } else if (digestEntry.isPresent()) {
+            logger.info(String.format("Digest of %s: %s %s", dir.target, digestEntry.get().getAlgorithm(),
+                    Base64.getEncoder().encodeToString(digestEntry.get().getHash())));
+        }
+
+        if (!entries.isEmpty()) {
+            try {
+                hashesWriter.submit(dir.target, entries);
+            } catch (InterruptedIOException e) {
+                logger.warning("Hashes file of " + dir.target + " not written: " + e);
+                otherErrors.incrementAndGet();
+            }
+        }
+        if (time != null) {
+            directoryTimes.put(dir.target, time);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the hashes of a directory in extended attributes instead of a hashes file.
+ *
+ * Every hashed file carries its entry - '&lt;time&gt;|&lt;size&gt;|&lt;algorithm&gt;|&lt;hash&gt;' - in the user
+ * attribute {@value #ATTRIBUTE} ('user.hasher' on Linux). The directory carries its digest in the same attribute, or
+ * an empty value if it has none. So a directory with the attribute was stored here, one without has never been. A
+ * directory whose files could not all take the attribute is marked with {@value #HASHES_FILE} and keeps its hashes
+ * file.
+ *
+ * Writing a changed entry touches only its file - there is no directory-wide rewrite. Entries of deleted files vanish
+ * with the files. Reading works the same way: the entry of a file is read when the walk gets to the file.
+ */
+final class XattrStore {
+
+    /**
+     * The name of the attribute, without the 'user.' namespace.
+     */
+    public static final String ATTRIBUTE = "hasher";
+
+    /**
+     * Directory attribute value of a directory that keeps its hashes file.
+     */
+    public static final String HASHES_FILE = "file";
+
+    private static final Logger logger = Logger.getLogger(XattrStore.class.getName());
+
+    private XattrStore() {
+    }
+
+    /**
+     * @param dir a directory
+     * @return true if the file system of the directory supports user attributes
+     */
+    public static boolean isSupported(Path dir) {
+        try {
+            return Files.getFileStore(dir).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the attribute of a directory.
+     *
+     * @param dir the directory
+     * @return the value - empty if the directory has none or the file system does not support attributes
+     */
+    public static Optional<String> readDirectory(Path dir) {
+        try {
+            return read(dir);
+        } catch (IOException | UnsupportedOperationException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads the digest of a directory from its attribute. The entries of its files are read one by one with
+     * {@link #readFile} as the files are visited.
+     *
+     * @param dir the directory
+     * @param directoryValue the attribute of the directory, as read by {@link #readDirectory}
+     * @param hashEntries the map to add the digest to
+     * @return the number of errors that occurred
+     */
+    public static long loadDigest(Path dir, String directoryValue, Map<String, HashEntry> hashEntries) {
+        if (directoryValue.isEmpty() || directoryValue.equals(HASHES_FILE)) {
+            return 0L;
+        }
+        try {
+            HashEntry digest = HashEntry.fromString(HashEntry.DIRECTORY_DIGEST + HashEntry.DELIMITER + directoryValue);
+            hashEntries.put(digest.getName(), digest);
+            return 0L;
+        } catch (RuntimeException e) {
+            logger.warning("Error parsing attribute of " + dir + ": " + e);
+            return 1L;
+        }
+    }
+
+    /**
+     * Reads all entries of a directory from the attributes of its files - for moving them elsewhere.
+     *
+     * @param dir the directory
+     * @param directoryValue the attribute of the directory, as read by {@link #readDirectory}
+     * @param hashEntries the map to add the entries to
+     * @return the number of errors that occurred
+     * @throws IOException if the directory cannot be listed
+     */
+    public static long load(Path dir, String directoryValue, Map<String, HashEntry> hashEntries) throws IOException {
+        long errorCount = loadDigest(dir, directoryValue, hashEntries);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                try {
+                    Optional<HashEntry> entry = readFile(file);
+                    if (entry.isPresent()) {
+                        hashEntries.put(entry.get().getName(), entry.get());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.warning("Could not read attribute of " + file + ": " + e);
+                    errorCount++;
+                }
+            }
+        }
+        return errorCount;
+    }
+
+    /**
+     * Reads the entry of a single file.
+     *
+     * @param file a regular file
+     * @return the entry - empty if the file has none
+     * @throws IOException if the attribute cannot be read
+     * @throws IllegalArgumentException if the attribute cannot be parsed
+     */
+    public static Optional<HashEntry> readFile(Path file) throws IOException {
+        Optional<String> value = read(file);
+        if (!value.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(HashEntry.fromString(file.getFileName() + HashEntry.DELIMITER + value.get()));
+    }
+
+    /**
+     * Writes the entries of a directory to the attributes of its files and the digest to the directory.
+     *
+     * @param dir the directory
+     * @param entries all entries of the directory, including the ones that do not exist anymore
+     * @param all write unchanged entries as well - when moving the entries from a hashes file
+     * @return the written files, followed by the directory
+     * @throws IOException if an attribute cannot be written - the directory keeps its old attribute then
+     */
+    public static List<Path> write(Path dir, Collection<HashEntry> entries, boolean all) throws IOException {
+        List<Path> written = new ArrayList<>();
+        String directoryValue = "";
+        for (HashEntry entry : entries) {
+            if (!entry.stillExists()) {
+                continue;
+            }
+            if (entry.isDirectoryDigest()) {
+                directoryValue = value(entry);
+            } else if (all || entry.wasChanged()) {
+                Path file = dir.resolve(entry.getName());
+                write(file, value(entry));
+                written.add(file);
+            }
+        }
+        // Last, so the directory only counts as stored once all its files are
+        write(dir, directoryValue);
+        written.add(dir);
+        return written;
+    }
+
+    /**
+     * Marks a directory as keeping its hashes file. Failures are ignored - the directory is just tried again later.
+     *
+     * @param dir the directory
+     */
+    public static void keepHashesFile(Path dir) {
+        try {
+            write(dir, HASHES_FILE);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.fine("Could not mark " + dir + ": " + e);
+        }
+    }
+
+    /**
+     * @return the entry without its name, which is the name of the file
+     */
+    private static String value(HashEntry entry) {
+        return entry.toString().substring(entry.getName().length() + HashEntry.DELIMITER.length());
+    }
+
+    private static Optional<String> read(Path path) throws IOException {
+        UserDefinedFileAttributeView view = view(path);
+        if (!view.list().contains(ATTRIBUTE)) {
+            return Optional.empty();
+        }
+        ByteBuffer buff = ByteBuffer.allocate(view.size(ATTRIBUTE));
+        view.read(ATTRIBUTE, buff);
+        buff.flip();
+        return Optional.of(StandardCharsets.UTF_8.decode(buff).toString());
+    }
+
+    private static void write(Path path, String value) throws IOException {
+        view(path).write(ATTRIBUTE, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static UserDefinedFileAttributeView view(Path path) throws IOException {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            throw new IOException("Extended attributes are not supported: " + path);
+        }
+        return view;
+    }
+}
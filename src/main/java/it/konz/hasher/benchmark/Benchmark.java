@@ -0,0 +1,273 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher.benchmark;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import it.konz.hasher.HasherService;
+import it.konz.hasher.ScanConfig;
+import it.konz.hasher.ScanException;
+import it.konz.hasher.ScanListener;
+import it.konz.hasher.Stats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End-to-end benchmark: generates synthetic trees and scans them like a user would, walk, hashes files and all.
+ *
+ * For every shape a fresh tree is generated and scanned four times: a first update that hashes everything, an update
+ * that finds nothing to do, an update after a fraction of the files was changed and a verify. Every run reports its
+ * {@link Stats} together with the garbage collections and heap allocation it caused, as JSON, so results of different
+ * versions and settings can be compared. The page cache is not dropped - the runs measure warm caches.
+ */
+public class Benchmark {
+
+    private static final Logger logger = Logger.getLogger(Benchmark.class.getName());
+
+    /**
+     * The command line of the benchmark.
+     */
+    static class Options {
+        @Parameter(names = {"--dir"}, description = "Directory to generate the trees in - must not exist", required = true)
+        private String dir;
+
+        @Parameter(names = {"--shape"}, description = "Tree shapes to run (SMALL, DEEP, WIDE, HUGE) - all if none")
+        private List<String> shapes = new ArrayList<>();
+
+        @Parameter(names = {"--files"}, description = "Number of files per tree (HUGE: divided by 10000, at least 1)")
+        private int files = 100000;
+
+        @Parameter(names = {"--changed"}, description = "Fraction of files to change before the second update")
+        private double changed = 0.01d;
+
+        @Parameter(names = {"--seed"}, description = "Seed of the generated content")
+        private long seed = 1L;
+
+        @Parameter(names = {"--algorithm", "-a"}, description = "Hashing algorithm")
+        private String algorithm = "MD5";
+
+        @Parameter(names = {"--threads", "-t"}, description = "Hashing threads")
+        private int threads = 1;
+
+        @Parameter(names = {"--streaming"}, description = "Scan in streaming mode")
+        private boolean streaming = false;
+
+        @Parameter(names = {"--prefetch"}, description = "Directories to prefetch ahead of the walk")
+        private int prefetch = 0;
+
+        @Parameter(names = {"--out", "-o"}, description = "JSON file to write - standard output if none")
+        private String out = null;
+
+        @Parameter(names = {"--keep"}, description = "Keep the generated trees")
+        private boolean keep = false;
+
+        @Parameter(names = {"--help", "-h"}, description = "Show help", help = true)
+        private boolean help = false;
+    }
+
+    /**
+     * One measured scan.
+     */
+    private static class Result {
+        private final TreeGenerator.Shape shape;
+        private final String run;
+        private final Stats stats;
+        private final long collections;
+        private final long collectionMillis;
+        private final long allocated;
+
+        private Result(TreeGenerator.Shape shape, String run, Stats stats, GcMonitor gc) {
+            this.shape = shape;
+            this.run = run;
+            this.stats = stats;
+            this.collections = gc.getCollections();
+            this.collectionMillis = gc.getCollectionMillis();
+            this.allocated = gc.getAllocated();
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT, "{\"shape\": \"%s\", \"run\": \"%s\", \"runtimeMillis\": %d, " +
+                            "\"filesHashed\": %d, \"bytesHashed\": %d, \"rateMiBs\": %.3f, \"verificationErrors\": %d, " +
+                            "\"otherErrors\": %d, \"gcCollections\": %d, \"gcMillis\": %d, \"allocatedBytes\": %d}",
+                    shape, run, stats.getRuntime().toMillis(), stats.getFilesHashed(), stats.getBytesHashed(),
+                    stats.getRate() / Stats.MI, stats.getVerificationErrors(), stats.getOtherErrors(), collections,
+                    collectionMillis, allocated);
+        }
+    }
+
+    private final Options options;
+    private final GcMonitor gc = new GcMonitor();
+
+    private Benchmark(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException, ScanException {
+        Options options = new Options();
+        JCommander jCommander = new JCommander(options);
+        jCommander.setProgramName("benchmark");
+        try {
+            jCommander.parse(args);
+        } catch (ParameterException e) {
+            System.err.println(e.getMessage() + '\n');
+            jCommander.usage();
+            System.exit(2);
+        }
+        if (options.help) {
+            jCommander.usage();
+            return;
+        }
+        // The scans log every directory otherwise
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        String json = new Benchmark(options).run();
+        if (options.out == null) {
+            System.out.println(json);
+        } else {
+            try (Writer writer = Files.newBufferedWriter(FileSystems.getDefault().getPath(options.out),
+                    StandardCharsets.UTF_8)) {
+                writer.write(json);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private String run() throws IOException, ScanException {
+        Path dir = FileSystems.getDefault().getPath(options.dir);
+        if (Files.exists(dir)) {
+            throw new IOException(dir + " already exists.");
+        }
+        List<TreeGenerator.Shape> shapes = new ArrayList<>();
+        for (String shape : options.shapes) {
+            shapes.add(TreeGenerator.Shape.valueOf(shape.toUpperCase(Locale.ROOT)));
+        }
+        if (shapes.isEmpty()) {
+            for (TreeGenerator.Shape shape : TreeGenerator.Shape.values()) {
+                shapes.add(shape);
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        TreeGenerator generator = new TreeGenerator(options.seed);
+        for (TreeGenerator.Shape shape : shapes) {
+            Path root = dir.resolve(shape.name().toLowerCase(Locale.ROOT));
+            int files = shape == TreeGenerator.Shape.HUGE ? Math.max(1, options.files / 10000) : options.files;
+            logger.warning(String.format("Generating %s tree with %d files...", shape, files));
+            generator.generate(root, shape, files);
+
+            results.add(measure(shape, "update", root, true, false));
+            results.add(measure(shape, "noop-update", root, true, false));
+            int changed = generator.change(root, options.changed, config(true, false).getHashFile());
+            logger.warning(String.format("Changed %d files.", changed));
+            results.add(measure(shape, "changed-update", root, true, false));
+            results.add(measure(shape, "verify", root, false, true));
+
+            if (!options.keep) {
+                delete(root);
+            }
+        }
+        if (!options.keep) {
+            Files.deleteIfExists(dir);
+        }
+        return toJson(results);
+    }
+
+    private ScanConfig config(boolean update, boolean verify) {
+        ScanConfig config = new ScanConfig();
+        config.setUpdate(update);
+        config.setVerify(verify);
+        config.setAlgorithm(options.algorithm);
+        config.setThreads(options.threads);
+        config.setStreaming(options.streaming);
+        config.setPrefetch(options.prefetch);
+        return config;
+    }
+
+    private Result measure(TreeGenerator.Shape shape, String run, Path root, boolean update, boolean verify)
+            throws ScanException {
+        logger.warning(String.format("Running %s on %s...", run, shape));
+        HasherService service = new HasherService(config(update, verify));
+        gc.start();
+        Stats stats = service.scan(root, ScanListener.NONE);
+        gc.stop();
+        return new Result(shape, run, stats, gc);
+    }
+
+    private String toJson(List<Result> results) {
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(String.format(Locale.ROOT, "  \"java\": \"%s\",\n", escape(System.getProperty("java.version"))));
+        sb.append(String.format(Locale.ROOT, "  \"os\": \"%s %s\",\n", escape(System.getProperty("os.name")),
+                escape(System.getProperty("os.arch"))));
+        sb.append(String.format(Locale.ROOT, "  \"cores\": %d,\n", runtime.availableProcessors()));
+        sb.append(String.format(Locale.ROOT, "  \"maxHeapBytes\": %d,\n", runtime.maxMemory()));
+        sb.append(String.format(Locale.ROOT, "  \"files\": %d,\n", options.files));
+        sb.append(String.format(Locale.ROOT, "  \"changed\": %s,\n", options.changed));
+        sb.append(String.format(Locale.ROOT, "  \"seed\": %d,\n", options.seed));
+        sb.append(String.format(Locale.ROOT, "  \"algorithm\": \"%s\",\n", escape(options.algorithm)));
+        sb.append(String.format(Locale.ROOT, "  \"threads\": %d,\n", options.threads));
+        sb.append(String.format(Locale.ROOT, "  \"streaming\": %b,\n", options.streaming));
+        sb.append(String.format(Locale.ROOT, "  \"prefetch\": %d,\n", options.prefetch));
+        sb.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i).toJson()).append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}");
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
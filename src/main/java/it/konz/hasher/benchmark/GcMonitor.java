@@ -0,0 +1,162 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Measures garbage collections and heap allocation between {@link #start()} and {@link #stop()}.
+ *
+ * The threads of a scan end before it returns, so their allocation counters are gone by then. Allocation is therefore
+ * measured on the heap: the bytes every collection freed plus the growth of the used heap. Only the portable parts of
+ * the GC notifications are used - on JVMs without them the allocation is reported as -1.
+ */
+class GcMonitor implements NotificationListener {
+
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private static final long NOTIFICATION_WAIT_MILLIS = 1000L;
+
+    private final AtomicLong freed = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private volatile long startUptime = Long.MAX_VALUE;
+    private long startCount;
+    private long startTime;
+    private long startUsed;
+    private long collections;
+    private long collectionMillis;
+    private long allocated;
+
+    /**
+     * Constructor. Registers with all collectors.
+     */
+    public GcMonitor() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+    }
+
+    /**
+     * Starts a measurement - after a full collection, so earlier garbage is not counted.
+     */
+    public void start() {
+        System.gc();
+        startCount = collectionCount();
+        startTime = collectionTime();
+        startUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        freed.set(0L);
+        notifications.set(0L);
+        // Notifications come late - the one of the collection above must not count
+        startUptime = ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Ends a measurement.
+     */
+    public void stop() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        collections = collectionCount() - startCount;
+        collectionMillis = collectionTime() - startTime;
+
+        long deadline = System.currentTimeMillis() + NOTIFICATION_WAIT_MILLIS;
+        while (notifications.get() < collections && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        allocated = notifications.get() >= collections ? freed.get() + used - startUsed : -1L;
+        startUptime = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of collections during the measurement
+     */
+    public long getCollections() {
+        return collections;
+    }
+
+    /**
+     * @return the time spent collecting during the measurement in milliseconds
+     */
+    public long getCollectionMillis() {
+        return collectionMillis;
+    }
+
+    /**
+     * @return the bytes allocated on the heap during the measurement - -1 if unknown
+     */
+    public long getAllocated() {
+        return allocated;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GC_NOTIFICATION.equals(notification.getType()) || !(notification.getUserData() instanceof CompositeData)) {
+            return;
+        }
+        CompositeData gcInfo = (CompositeData) ((CompositeData) notification.getUserData()).get("gcInfo");
+        if ((Long) gcInfo.get("startTime") < startUptime) {
+            return;
+        }
+        long before = used((TabularData) gcInfo.get("memoryUsageBeforeGc"));
+        long after = used((TabularData) gcInfo.get("memoryUsageAfterGc"));
+        freed.addAndGet(before - after);
+        notifications.incrementAndGet();
+    }
+
+    /**
+     * @return the used bytes of all memory pools in a GC notification
+     */
+    private static long used(TabularData pools) {
+        long used = 0L;
+        for (Object row : pools.values()) {
+            used += MemoryUsage.from((CompositeData) ((CompositeData) row).get("value")).getUsed();
+        }
+        return used;
+    }
+
+    private static long collectionCount() {
+        long count = 0L;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionTime() {
+        long time = 0L;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0L, collector.getCollectionTime());
+        }
+        return time;
+    }
+}
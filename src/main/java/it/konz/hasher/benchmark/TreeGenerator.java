@@ -0,0 +1,173 @@
+/*
+ * Hasher - Hashes and verifies entire directory trees.
+ * Copyright (C) 2014  Oliver Konz <code@oliverkonz.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.konz.hasher.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic directory trees of a given shape. The same seed always gives the same tree.
+ */
+public class TreeGenerator {
+
+    /**
+     * The shapes of the generated trees.
+     */
+    public enum Shape {
+        /**
+         * Many files of 1 KiB in directories of 1000 files.
+         */
+        SMALL,
+        /**
+         * Chains of 64 nested directories, each with a few 16 KiB files.
+         */
+        DEEP,
+        /**
+         * A single directory holding all files, 4 KiB each.
+         */
+        WIDE,
+        /**
+         * A few files of 256 MiB.
+         */
+        HUGE
+    }
+
+    public static final int FILES_PER_DIRECTORY = 1000;
+    public static final int FILES_PER_LEVEL = 4;
+    public static final int MAX_DEPTH = 64;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long seed;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    /**
+     * Constructor.
+     *
+     * @param seed the seed of the file contents
+     */
+    public TreeGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a tree. The directory must not exist yet.
+     *
+     * @param root the root of the tree
+     * @param shape the shape
+     * @param files the number of files
+     * @return the total size of the files in bytes
+     * @throws IOException if the tree cannot be written
+     */
+    public long generate(Path root, Shape shape, int files) throws IOException {
+        Random random = new Random(seed);
+        Files.createDirectories(root);
+        long bytes = 0L;
+        Path dir = root;
+        for (int i = 0; i < files; i++) {
+            switch (shape) {
+                case SMALL:
+                    if (i % FILES_PER_DIRECTORY == 0) {
+                        dir = Files.createDirectories(root.resolve(String.format("d%06d", i / FILES_PER_DIRECTORY)));
+                    }
+                    bytes += write(dir.resolve(fileName(i)), 1024L, random);
+                    break;
+                case DEEP:
+                    if (i % (FILES_PER_LEVEL * MAX_DEPTH) == 0) {
+                        dir = Files.createDirectory(root.resolve(String.format("c%06d", i / (FILES_PER_LEVEL * MAX_DEPTH))));
+                    } else if (i % FILES_PER_LEVEL == 0) {
+                        dir = Files.createDirectory(dir.resolve("d"));
+                    }
+                    bytes += write(dir.resolve(fileName(i)), 16L * 1024L, random);
+                    break;
+                case WIDE:
+                    bytes += write(root.resolve(fileName(i)), 4L * 1024L, random);
+                    break;
+                case HUGE:
+                    bytes += write(root.resolve(fileName(i)), 256L * 1024L * 1024L, random);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown shape " + shape);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Rewrites a fraction of the files with new content of the same size and moves their modification time forward.
+     *
+     * @param root the root of the tree
+     * @param fraction the fraction of files to change
+     * @param hashFileName the hashes file name - these files are never changed
+     * @return the number of changed files
+     * @throws IOException if a file cannot be written
+     */
+    public int change(Path root, double fraction, String hashFileName) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !file.getFileName().toString().startsWith(hashFileName)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        // The walk order depends on the file system - the choice must not
+        Collections.sort(files);
+
+        Random random = new Random(seed + 1L);
+        Collections.shuffle(files, random);
+        int changed = (int) Math.round(files.size() * fraction);
+        for (Path file : files.subList(0, changed)) {
+            FileTime time = Files.getLastModifiedTime(file);
+            write(file, Files.size(file), random);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(time.toMillis() + 2000L));
+        }
+        return changed;
+    }
+
+    private static String fileName(int i) {
+        return String.format("f%08d", i);
+    }
+
+    private long write(Path file, long size, Random random) throws IOException {
+        byte[] data = size < CHUNK_SIZE ? new byte[(int) size] : chunk;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long left = size;
+            while (left > 0L) {
+                random.nextBytes(data);
+                int length = (int) Math.min(left, CHUNK_SIZE);
+                out.write(data, 0, length);
+                left -= length;
+            }
+        }
+        return size;
+    }
+}